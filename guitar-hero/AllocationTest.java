@@ -0,0 +1,149 @@
+/* *****************************************************************************
+ *  Compilation:  javac AllocationTest.java
+ *  Execution:    java AllocationTest [seconds]
+ *
+ *  Checks that the steady-state render path never allocates. A MidiSource
+ *  plays a generated MIDI file (a chord on a different channel every few
+ *  milliseconds, with a control change each) through its receiver, filter
+ *  and queue, while this (the audio) thread drains it with
+ *  nextPackedMessage() into a ParallelSynth and renders blocks into a null
+ *  sink, first for WARM_UP_SECONDS of audio, and then in measured rounds
+ *  of the given number of seconds of audio (default 10). The bytes
+ *  allocated by the audio thread and by every worker thread during a
+ *  round, as reported by ThreadMXBean.getThreadAllocatedBytes(), must be
+ *  zero.
+ *
+ *  The JIT compiler may still recompile the render path after the warm-up,
+ *  and compiling or deoptimizing can allocate a few hundred bytes on the
+ *  thread being compiled, so one dirty round is not a failure: the check
+ *  passes after CLEAN_ROUNDS clean rounds in a row, and fails if that has
+ *  not happened within MAX_ROUNDS rounds (as it never does when the render
+ *  path allocates steadily).
+ *
+ *  The render path is run with 0 workers (everything on the audio thread)
+ *  and with 2 workers. Exits with status 1 if either check fails.
+ *
+ **************************************************************************** */
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+public class AllocationTest {
+    private static final int BLOCK_SIZE = 256;
+    private static final int WARM_UP_SECONDS = 10;
+
+    // clean rounds in a row needed to pass, and most rounds before failing
+    private static final int CLEAN_ROUNDS = 2;
+    private static final int MAX_ROUNDS = 10;
+
+    // length of the generated MIDI file, longer than any run
+    private static final int SONG_MINUTES = 10;
+
+    // ThreadMXBean with allocation accounting
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // writes a MIDI file with a chord on a different channel every 3 ms, and a control change each
+    private static String song() {
+        try {
+            Sequence sequence = new Sequence(Sequence.PPQ, 500);  // 1 tick = 1 ms at 120 bpm
+            Track track = sequence.createTrack();
+            for (int i = 0; i < SONG_MINUTES * 60 * 1000 / 3; i++) {
+                int channel = i % ParallelSynth.CHANNELS;
+                long tick = 3L * i;
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, 36 + i % 60, 100), tick));
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 1, i % 128), tick));
+            }
+            File file = File.createTempFile("AllocationTest", ".mid");
+            file.deleteOnExit();
+            MidiSystem.write(sequence, 0, file);
+            return file.getPath();
+        } catch (InvalidMidiDataException | IOException e) {
+            throw new RuntimeException("Unable to write test MIDI file: " + e.getMessage());
+        }
+    }
+
+    // renders the given number of blocks from the source into a null sink
+    private static double render(ParallelSynth synth, MidiSource source, double[] block, long blocks) {
+        double sink = 0.0;
+        for (long b = 0; b < blocks; b++) {
+            int message;
+            while ((message = source.nextPackedMessage()) != -1) {
+                synth.message(message);
+            }
+            synth.render(block);
+            sink += block[0];
+        }
+        return sink;
+    }
+
+    // runs the render path with the given number of workers; returns true if
+    // CLEAN_ROUNDS rounds in a row allocated nothing
+    private static boolean check(String song, int workerCount, double seconds) {
+        MidiSource source = new MidiSource(song, false, false);
+        ParallelSynth synth = new ParallelSynth(BLOCK_SIZE, workerCount);
+        double[] block = new double[BLOCK_SIZE];
+        source.start();
+
+        long blocks = (long) (seconds * ParallelSynth.SAMPLE_RATE / BLOCK_SIZE);
+        long warmUp = WARM_UP_SECONDS * ParallelSynth.SAMPLE_RATE / BLOCK_SIZE;
+        double sink = render(synth, source, block, warmUp);
+
+        long[] ids = synth.workerIds();
+        long[] before = new long[ids.length];
+        long self = Thread.currentThread().getId();
+        long calibration = THREADS.getThreadAllocatedBytes(self);
+        calibration = THREADS.getThreadAllocatedBytes(self) - calibration; // cost of the call itself
+        int clean = 0;
+        int round = 0;
+        while (clean < CLEAN_ROUNDS && round < MAX_ROUNDS) {
+            round++;
+            for (int w = 0; w < ids.length; w++) {
+                before[w] = THREADS.getThreadAllocatedBytes(ids[w]);
+            }
+            long start = THREADS.getThreadAllocatedBytes(self);
+            sink += render(synth, source, block, blocks);
+            long allocated = THREADS.getThreadAllocatedBytes(self) - start - calibration;
+
+            StringBuilder workers = new StringBuilder();
+            boolean ok = allocated == 0;
+            for (int w = 0; w < ids.length; w++) {
+                long bytes = THREADS.getThreadAllocatedBytes(ids[w]) - before[w];
+                workers.append(", worker ").append(w).append(" ").append(bytes);
+                ok = ok && bytes == 0;
+            }
+            clean = ok ? clean + 1 : 0;
+            System.out.printf("%d workers, round %d (%.1f s): audio thread %d bytes%s%n",
+                              workerCount, round, seconds, allocated, workers);
+        }
+
+        synth.close();
+        source.close();
+        if (Double.isNaN(sink))
+            System.out.println("NaN in output");
+        return clean == CLEAN_ROUNDS;
+    }
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 10.0;
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            System.out.println("thread allocation accounting is not supported by this JVM");
+            return;
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        String song = song();
+        boolean ok = check(song, 0, seconds);
+        ok = check(song, 2, seconds) && ok;
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,22 @@
+/* *****************************************************************************
+ *  Compilation:  javac AudioSink.java
+ *
+ *  An AudioSink is where mixed blocks of samples (between -1.0 and +1.0,
+ *  44,100 per second, mono) are sent: standard audio, a file, or nothing.
+ *
+ **************************************************************************** */
+
+public interface AudioSink {
+
+    /**
+     * Writes the first length samples of a block. The block may be reused
+     * by the caller as soon as this method returns.
+     *
+     * @param samples the block of samples
+     * @param length the number of samples to write
+     */
+    void write(double[] samples, int length);
+
+    // flushes and closes the sink
+    void close();
+}
@@ -0,0 +1,304 @@
+/* *****************************************************************************
+ *  Compilation:  javac FlacDecoder.java
+ *  Execution:    java FlacDecoder filename.flac
+ *
+ *  Decodes a mono FLAC file into 16-bit samples, checking the CRC of every
+ *  frame header and frame. It reads everything FlacSink writes (CONSTANT,
+ *  VERBATIM and FIXED subframes with Rice coded residuals) as well as LPC
+ *  subframes, wasted bits, and 5-bit Rice parameters, so it can also read
+ *  mono files written by other encoders.
+ *
+ **************************************************************************** */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public final class FlacDecoder {
+    private final byte[] data;
+    private long position;          // in bits
+    private int bitsPerSample;
+    private long totalSamples;
+    private int sampleRate;
+
+    private FlacDecoder(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Decodes a mono FLAC file.
+     *
+     * @param filename the name of the FLAC file
+     * @return the samples of the file, as 16-bit values
+     * @throws RuntimeException if the file cannot be read or is not a valid mono FLAC file
+     */
+    public static short[] decode(String filename) {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(Paths.get(filename));
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading file: " + filename);
+        }
+        return new FlacDecoder(data).decode();
+    }
+
+    private short[] decode() {
+        if (readBits(32) != 0x664C6143)                     // "fLaC"
+            throw new RuntimeException("Not a FLAC file");
+
+        // metadata blocks
+        boolean last = false;
+        while (!last) {
+            last = readBits(1) == 1;
+            int type = (int) readBits(7);
+            int length = (int) readBits(24);
+            if (type == 0) {
+                readBits(16 + 16 + 24 + 24);                // block and frame sizes
+                sampleRate = (int) readBits(20);
+                if (readBits(3) != 0)
+                    throw new RuntimeException("Only mono FLAC files are supported");
+                bitsPerSample = (int) readBits(5) + 1;
+                totalSamples = readBits(36);
+                position += 128;                            // MD5
+            }
+            else {
+                position += 8L * length;
+            }
+        }
+
+        short[] samples = new short[(int) totalSamples];
+        int[] block = new int[65536];
+        int n = 0;
+        while (position + 16 <= 8L * data.length && n < samples.length) {
+            int count = decodeFrame(block);
+            int shift = 16 - bitsPerSample;
+            for (int i = 0; i < count && n < samples.length; i++) {
+                samples[n++] = (short) (shift >= 0 ? block[i] << shift : block[i] >> -shift);
+            }
+        }
+        if (n != samples.length)
+            throw new RuntimeException("FLAC file is truncated: " + n + " of " + samples.length + " samples");
+        return samples;
+    }
+
+    // decodes one frame into block and returns its number of samples
+    private int decodeFrame(int[] block) {
+        int start = (int) (position / 8);
+        if (readBits(14) != 0x3FFE)
+            throw new RuntimeException("Lost FLAC frame sync at byte " + start);
+        readBits(2);                                        // reserved, blocking strategy
+        int sizeCode = (int) readBits(4);
+        int rateCode = (int) readBits(4);
+        if (readBits(4) != 0)
+            throw new RuntimeException("Only mono FLAC files are supported");
+        int bpsCode = (int) readBits(3);
+        readBits(1);
+        readUtf8();
+
+        int n;
+        if (sizeCode == 1)
+            n = 192;
+        else if (sizeCode >= 2 && sizeCode <= 5)
+            n = 576 << (sizeCode - 2);
+        else if (sizeCode == 6)
+            n = (int) readBits(8) + 1;
+        else if (sizeCode == 7)
+            n = (int) readBits(16) + 1;
+        else if (sizeCode >= 8)
+            n = 256 << (sizeCode - 8);
+        else
+            throw new RuntimeException("Invalid FLAC block size");
+        if (rateCode == 12)
+            readBits(8);
+        else if (rateCode == 13 || rateCode == 14)
+            readBits(16);
+        int[] bpsTable = { bitsPerSample, 8, 12, 0, 16, 20, 24, 32 };
+        int bps = bpsTable[bpsCode];
+
+        int crc8 = crc8(start, (int) (position / 8));
+        if (readBits(8) != crc8)
+            throw new RuntimeException("FLAC frame header CRC mismatch at byte " + start);
+
+        decodeSubframe(block, n, bps);
+
+        position = (position + 7) & ~7L;                    // byte alignment
+        int crc16 = crc16(start, (int) (position / 8));
+        if (readBits(16) != crc16)
+            throw new RuntimeException("FLAC frame CRC mismatch at byte " + start);
+        return n;
+    }
+
+    private void decodeSubframe(int[] x, int n, int bps) {
+        readBits(1);
+        int type = (int) readBits(6);
+        int wasted = 0;
+        if (readBits(1) == 1) {
+            wasted = 1;
+            while (readBits(1) == 0) {
+                wasted++;
+            }
+        }
+        bps -= wasted;
+
+        if (type == 0) {                                    // CONSTANT
+            int value = readSigned(bps);
+            for (int i = 0; i < n; i++) {
+                x[i] = value;
+            }
+        }
+        else if (type == 1) {                               // VERBATIM
+            for (int i = 0; i < n; i++) {
+                x[i] = readSigned(bps);
+            }
+        }
+        else if (type >= 8 && type <= 12) {                 // FIXED
+            int order = type - 8;
+            for (int i = 0; i < order; i++) {
+                x[i] = readSigned(bps);
+            }
+            readResidual(x, n, order);
+            for (int i = order; i < n; i++) {
+                switch (order) {
+                    case 0:  break;
+                    case 1:  x[i] += x[i - 1]; break;
+                    case 2:  x[i] += 2 * x[i - 1] - x[i - 2]; break;
+                    case 3:  x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3]; break;
+                    default: x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4]; break;
+                }
+            }
+        }
+        else if (type >= 32) {                              // LPC
+            int order = type - 31;
+            for (int i = 0; i < order; i++) {
+                x[i] = readSigned(bps);
+            }
+            int precision = (int) readBits(4) + 1;
+            int shift = readSigned(5);
+            int[] coefficients = new int[order];
+            for (int i = 0; i < order; i++) {
+                coefficients[i] = readSigned(precision);
+            }
+            readResidual(x, n, order);
+            for (int i = order; i < n; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefficients[j] * x[i - 1 - j];
+                }
+                x[i] += (int) (sum >> shift);
+            }
+        }
+        else {
+            throw new RuntimeException("Invalid FLAC subframe type: " + type);
+        }
+
+        if (wasted > 0) {
+            for (int i = 0; i < n; i++) {
+                x[i] <<= wasted;
+            }
+        }
+    }
+
+    // reads a Rice coded residual into x[order..n)
+    private void readResidual(int[] x, int n, int order) {
+        int method = (int) readBits(2);
+        if (method > 1)
+            throw new RuntimeException("Invalid FLAC residual coding method");
+        int parameterBits = method == 0 ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = (int) readBits(4);
+        int partitions = 1 << partitionOrder;
+        int size = n >> partitionOrder;
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * size;
+            int k = (int) readBits(parameterBits);
+            if (k == escape) {
+                int bits = (int) readBits(5);
+                for (; i < end; i++) {
+                    x[i] = bits == 0 ? 0 : readSigned(bits);
+                }
+                continue;
+            }
+            for (; i < end; i++) {
+                long q = 0;
+                while (readBits(1) == 0) {
+                    q++;
+                }
+                long u = (q << k) | readBits(k);
+                x[i] = (int) ((u >>> 1) ^ -(u & 1));
+            }
+        }
+    }
+
+    // reads a frame number in FLAC's UTF-8 like coding
+    private long readUtf8() {
+        int first = (int) readBits(8);
+        int extra = 0;
+        while (extra < 7 && (first & (0x80 >> extra)) != 0) {
+            extra++;
+        }
+        if (extra == 0)
+            return first;
+        long v = first & (0xFF >> (extra + 1));
+        for (int i = 1; i < extra; i++) {
+            v = (v << 6) | (readBits(8) & 0x3F);
+        }
+        return v;
+    }
+
+    // reads n bits MSB first, 0 <= n <= 57
+    private long readBits(int n) {
+        long v = 0;
+        for (int i = 0; i < n; i++) {
+            if (position >= 8L * data.length)
+                throw new RuntimeException("FLAC file is truncated");
+            int bit = (data[(int) (position >> 3)] >> (7 - (int) (position & 7))) & 1;
+            v = (v << 1) | bit;
+            position++;
+        }
+        return v;
+    }
+
+    // reads an n bit two's complement value
+    private int readSigned(int n) {
+        long v = readBits(n);
+        return (int) (v << (64 - n) >> (64 - n));
+    }
+
+    private int crc8(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+        }
+        return crc;
+    }
+
+    private int crc16(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xFFFF : (crc << 1) & 0xFFFF;
+            }
+        }
+        return crc;
+    }
+
+    // decodes a FLAC file and prints its length and peak level
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("java FlacDecoder <filename.flac>");
+            return;
+        }
+        short[] samples = decode(args[0]);
+        int peak = 0;
+        for (short sample : samples) {
+            peak = Math.max(peak, Math.abs(sample));
+        }
+        System.out.printf("%d samples (%.1f s), peak %d%n", samples.length,
+                          samples.length / 44100.0, peak);
+    }
+}
@@ -0,0 +1,520 @@
+/* *****************************************************************************
+ *  Compilation:  javac FlacSink.java
+ *  Execution:    java FlacSink filename.flac [seconds]
+ *
+ *  A FlacSink is an AudioSink that writes a FLAC file (16-bit mono, 44,100
+ *  samples per second), as a lossless and much smaller alternative to WAV
+ *  for long renders and recordings.
+ *
+ *  Each block of BLOCK_SIZE samples is encoded with the FIXED predictor
+ *  (order 0 to 4) whose residual is smallest, and the residual is Rice
+ *  coded with the partition order and parameters that minimize its size.
+ *  Silent or constant blocks become CONSTANT subframes, and blocks that do
+ *  not compress are stored VERBATIM. Karplus-Strong strings are smooth and
+ *  decay to silence, so they compress very well.
+ *
+ *  write() only converts samples into a preallocated queue of blocks; a
+ *  background thread encodes the full blocks and writes them to the file,
+ *  in parallel with synthesis. close() encodes the last (partial) block and
+ *  fills in the total number of samples and the frame sizes in STREAMINFO.
+ *
+ *  See FlacDecoder for the matching decoder.
+ *
+ **************************************************************************** */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+public final class FlacSink implements AudioSink {
+    public static final int SAMPLE_RATE = 44100;
+    public static final int BLOCK_SIZE = 4096;
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final double MAX_16_BIT = Short.MAX_VALUE;
+
+    // number of blocks queued between the audio thread and the encoder
+    private static final int QUEUE_BLOCKS = 16;
+
+    // encoding limits
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    // size of the fLaC marker and the STREAMINFO block, before the first frame
+    private static final int STREAMINFO_OFFSET = 4;
+    private static final int HEADER_SIZE = 4 + 4 + 34;
+
+    private final String filename;
+    private final FileChannel file;
+
+    // queue of blocks, written by the audio thread and read by the encoder
+    private final int[][] queue = new int[QUEUE_BLOCKS][BLOCK_SIZE];
+    private final int[] queueLengths = new int[QUEUE_BLOCKS];
+    private volatile long queued;       // blocks queued (audio thread)
+    private volatile long encoded;      // blocks encoded (encoder)
+    private int fill;                   // samples in the block being filled
+    private volatile boolean closing;
+    private volatile boolean producerParked;
+    private volatile boolean encoderParked;
+    private final Thread producer;      // thread that called the constructor
+    private final Thread encoder;
+    private volatile IOException failure;
+
+    // encoder state (encoder thread only)
+    private final BitWriter writer = new BitWriter(BLOCK_SIZE * 3 + 64);
+    private final int[] residual = new int[BLOCK_SIZE];
+    private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final ByteBuffer frameBuffer = ByteBuffer.allocateDirect(BLOCK_SIZE * 3 + 64);
+    private long frames;
+    private long totalSamples;
+    private int minFrameSize = Integer.MAX_VALUE;
+    private int maxFrameSize;
+
+    /**
+     * Creates a FLAC file and starts its encoder thread. The thread that
+     * creates the sink is the one that must write to it.
+     *
+     * @param filename the name of the FLAC file
+     * @throws RuntimeException if the file cannot be created
+     */
+    public FlacSink(String filename) {
+        this.filename = filename;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+            raf.setLength(0);
+            file = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(new byte[] { 'f', 'L', 'a', 'C' });
+            putStreamInfo(header);
+            header.flip();
+            while (header.hasRemaining()) {
+                file.write(header);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing file: " + filename);
+        }
+
+        producer = Thread.currentThread();
+        encoder = new Thread(new Runnable() {
+            public void run() {
+                encodeQueue();
+            }
+        }, "FlacSink encoder");
+        encoder.setDaemon(true);
+        encoder.start();
+    }
+
+    // writes the STREAMINFO metadata block, with its block header (last block, type 0, length 34)
+    private void putStreamInfo(ByteBuffer buffer) {
+        buffer.putInt(0x80000000 | 34);
+        buffer.putShort((short) BLOCK_SIZE);                          // min block size
+        buffer.putShort((short) BLOCK_SIZE);                          // max block size
+        int min = minFrameSize == Integer.MAX_VALUE ? 0 : minFrameSize;
+        buffer.put((byte) (min >> 16)).put((byte) (min >> 8)).put((byte) min);
+        buffer.put((byte) (maxFrameSize >> 16)).put((byte) (maxFrameSize >> 8)).put((byte) maxFrameSize);
+        // 20 bits sample rate, 3 bits channels - 1, 5 bits bits per sample - 1, 36 bits samples
+        long packed = ((long) SAMPLE_RATE << 44) | ((long) (BITS_PER_SAMPLE - 1) << 36)
+                | (totalSamples & 0xFFFFFFFFFL);
+        buffer.putLong(packed);
+        buffer.put(new byte[16]);                                     // MD5 unknown
+    }
+
+    // converts and queues a block of samples
+    public void write(double[] samples, int length) {
+        for (int t = 0; t < length; t++) {
+            double x = samples[t];
+            if (x < -1.0) x = -1.0;
+            if (x > +1.0) x = +1.0;
+            int[] block = queue[(int) (queued % QUEUE_BLOCKS)];
+            block[fill++] = (int) (MAX_16_BIT * x);
+            if (fill == BLOCK_SIZE)
+                publish();
+        }
+    }
+
+    // hands the block being filled to the encoder, waiting for room if needed
+    private void publish() {
+        queueLengths[(int) (queued % QUEUE_BLOCKS)] = fill;
+        fill = 0;
+        queued++;
+        if (encoderParked)
+            LockSupport.unpark(encoder);
+        while (queued - encoded >= QUEUE_BLOCKS) {
+            producerParked = true;
+            if (queued - encoded >= QUEUE_BLOCKS)
+                LockSupport.park(this);
+            producerParked = false;
+        }
+    }
+
+    // encodes the last block, completes STREAMINFO and closes the file
+    public void close() {
+        if (fill > 0)
+            publish();
+        closing = true;
+        LockSupport.unpark(encoder);
+        try {
+            encoder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (failure != null)
+                throw failure;
+            ByteBuffer info = ByteBuffer.allocate(38);
+            putStreamInfo(info);
+            info.flip();
+            file.write(info, STREAMINFO_OFFSET);
+            file.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing file: " + filename);
+        }
+    }
+
+    // number of samples encoded so far
+    public long samples() {
+        return totalSamples;
+    }
+
+    // body of the encoder thread
+    private void encodeQueue() {
+        while (true) {
+            if (encoded == queued) {
+                if (closing)
+                    return;
+                encoderParked = true;
+                if (encoded == queued && !closing)
+                    LockSupport.park(this);
+                encoderParked = false;
+                continue;
+            }
+            int i = (int) (encoded % QUEUE_BLOCKS);
+            try {
+                if (failure == null)
+                    writeFrame(queue[i], queueLengths[i]);
+            } catch (IOException e) {
+                failure = e;
+            }
+            encoded++;
+            if (producerParked)
+                LockSupport.unpark(producer);
+        }
+    }
+
+    // encodes one frame and writes it to the file
+    private void writeFrame(int[] samples, int n) throws IOException {
+        BitWriter w = writer;
+        w.reset();
+
+        // frame header
+        w.write(14, 0x3FFE);                            // sync code
+        w.write(1, 0);                                  // reserved
+        w.write(1, 0);                                  // fixed block size
+        w.write(4, n == BLOCK_SIZE ? 0xC : 0x7);        // 4096, or 16 bit size at end of header
+        w.write(4, 0x9);                                // 44.1 kHz
+        w.write(4, 0x0);                                // mono
+        w.write(3, 0x4);                                // 16 bits per sample
+        w.write(1, 0);                                  // reserved
+        w.writeUtf8(frames);
+        if (n != BLOCK_SIZE)
+            w.write(16, n - 1);
+        w.write(8, w.crc8());
+
+        encodeSubframe(w, samples, n);
+
+        w.alignToByte();
+        w.write(16, w.crc16());
+
+        frameBuffer.clear();
+        frameBuffer.put(w.bytes(), 0, w.length());
+        frameBuffer.flip();
+        while (frameBuffer.hasRemaining()) {
+            file.write(frameBuffer);
+        }
+        minFrameSize = Math.min(minFrameSize, w.length());
+        maxFrameSize = Math.max(maxFrameSize, w.length());
+        frames++;
+        totalSamples += n;
+    }
+
+    // encodes the subframe of a block with the cheapest of CONSTANT, FIXED and VERBATIM
+    private void encodeSubframe(BitWriter w, int[] x, int n) {
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            w.write(8, 0x00);                           // CONSTANT
+            w.writeSigned(BITS_PER_SAMPLE, x[0]);
+            return;
+        }
+
+        // pick the predictor order with the smallest residual
+        int maxOrder = Math.min(MAX_FIXED_ORDER, n - 1);
+        int order = 0;
+        long best = Long.MAX_VALUE;
+        for (int p = 0; p <= maxOrder; p++) {
+            long sum = 0;
+            for (int i = maxOrder; i < n; i++) {
+                sum += Math.abs(predictionError(x, i, p));
+            }
+            if (sum < best) {
+                best = sum;
+                order = p;
+            }
+        }
+        for (int i = order; i < n; i++) {
+            residual[i] = predictionError(x, i, order);
+        }
+
+        // pick the partition order with the fewest bits
+        int partitionOrder = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int po = 0; po <= MAX_PARTITION_ORDER; po++) {
+            if (n % (1 << po) != 0 || (n >> po) <= order)
+                break;
+            long bits = partitionBits(n, order, po, false);
+            if (bits < bestBits) {
+                bestBits = bits;
+                partitionOrder = po;
+            }
+        }
+
+        long fixedBits = 8 + (long) order * BITS_PER_SAMPLE + 6 + bestBits;
+        if (fixedBits >= 8 + (long) n * BITS_PER_SAMPLE) {
+            w.write(8, 0x02);                           // VERBATIM
+            for (int i = 0; i < n; i++) {
+                w.writeSigned(BITS_PER_SAMPLE, x[i]);
+            }
+            return;
+        }
+
+        w.write(8, (0x08 | order) << 1);                // FIXED, no wasted bits
+        for (int i = 0; i < order; i++) {
+            w.writeSigned(BITS_PER_SAMPLE, x[i]);
+        }
+        partitionBits(n, order, partitionOrder, true);  // sets riceParameters
+        w.write(2, 0);                                  // Rice, 4 bit parameters
+        w.write(4, partitionOrder);
+        int partitions = 1 << partitionOrder;
+        int size = n >> partitionOrder;
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            int k = riceParameters[p];
+            w.write(4, k);
+            int end = (p + 1) * size;
+            for (; i < end; i++) {
+                int r = residual[i];
+                int u = (r << 1) ^ (r >> 31);           // zigzag
+                w.writeUnary(u >>> k);
+                if (k > 0)
+                    w.write(k, u);
+            }
+        }
+    }
+
+    // residual of the FIXED predictor of an order at sample i
+    private static int predictionError(int[] x, int i, int order) {
+        switch (order) {
+            case 0:  return x[i];
+            case 1:  return x[i] - x[i - 1];
+            case 2:  return x[i] - 2 * x[i - 1] + x[i - 2];
+            case 3:  return x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+            default: return x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+        }
+    }
+
+    // number of bits of the Rice coded residual with the given partition
+    // order, choosing the best parameter for each partition (stored in
+    // riceParameters if save is true)
+    private long partitionBits(int n, int order, int partitionOrder, boolean save) {
+        int partitions = 1 << partitionOrder;
+        int size = n >> partitionOrder;
+        long total = 0;
+        int start = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * size;
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                int r = residual[i];
+                sum += (r << 1) ^ (r >> 31);
+            }
+            int count = end - start;
+
+            // the best parameter is near log2 of the mean; check its neighbours
+            int guess = 0;
+            if (count > 0 && sum > count)
+                guess = 63 - Long.numberOfLeadingZeros(sum / count);
+            int bestK = 0;
+            long bestBits = Long.MAX_VALUE;
+            int low = Math.min(Math.max(0, guess - 1), MAX_RICE_PARAMETER);
+            int high = Math.min(guess + 1, MAX_RICE_PARAMETER);
+            for (int k = low; k <= high; k++) {
+                long bits = 4 + (long) count * (k + 1);
+                for (int i = start; i < end; i++) {
+                    int r = residual[i];
+                    bits += (((r << 1) ^ (r >> 31)) >>> k);
+                }
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    bestK = k;
+                }
+            }
+            if (save)
+                riceParameters[p] = bestK;
+            total += bestBits;
+            start = end;
+        }
+        return total;
+    }
+
+    // writes bits MSB first into a preallocated array, with FLAC's CRCs
+    private static final class BitWriter {
+        private static final int[] CRC8 = new int[256];
+        private static final int[] CRC16 = new int[256];
+        static {
+            for (int i = 0; i < 256; i++) {
+                int c8 = i;
+                int c16 = i << 8;
+                for (int b = 0; b < 8; b++) {
+                    c8 = (c8 & 0x80) != 0 ? (c8 << 1) ^ 0x07 : c8 << 1;
+                    c16 = (c16 & 0x8000) != 0 ? (c16 << 1) ^ 0x8005 : c16 << 1;
+                }
+                CRC8[i] = c8 & 0xFF;
+                CRC16[i] = c16 & 0xFFFF;
+            }
+        }
+
+        private byte[] bytes;
+        private int length;     // complete bytes
+        private long bits;      // pending bits, in the low count bits
+        private int count;      // number of pending bits (< 8 between calls)
+
+        BitWriter(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void reset() {
+            length = 0;
+            count = 0;
+        }
+
+        // writes the low n bits of value, 0 <= n <= 32
+        void write(int n, long value) {
+            bits = (bits << n) | (value & ((1L << n) - 1));
+            count += n;
+            while (count >= 8) {
+                count -= 8;
+                if (length == bytes.length)
+                    bytes = java.util.Arrays.copyOf(bytes, 2 * bytes.length);
+                bytes[length++] = (byte) (bits >>> count);
+            }
+        }
+
+        void writeSigned(int n, int value) {
+            write(n, value);
+        }
+
+        // writes q zeros followed by a one
+        void writeUnary(int q) {
+            while (q >= 32) {
+                write(32, 0);
+                q -= 32;
+            }
+            write(q + 1, 1);
+        }
+
+        // writes a frame number in FLAC's UTF-8 like coding
+        void writeUtf8(long v) {
+            if (v < 0x80) {
+                write(8, v);
+                return;
+            }
+            int extra = v < 0x800 ? 1 : v < 0x10000 ? 2 : v < 0x200000 ? 3 : v < 0x4000000 ? 4 : 5;
+            int lead = (0xFF00 >> (extra + 1)) & 0xFF;              // extra + 1 leading ones
+            write(8, lead | (v >> (6 * extra)));
+            for (int i = extra - 1; i >= 0; i--) {
+                write(8, 0x80 | ((v >> (6 * i)) & 0x3F));
+            }
+        }
+
+        void alignToByte() {
+            if (count > 0)
+                write(8 - count, 0);
+        }
+
+        // CRC-8 of the complete bytes written so far
+        int crc8() {
+            int crc = 0;
+            for (int i = 0; i < length; i++) {
+                crc = CRC8[(crc ^ bytes[i]) & 0xFF];
+            }
+            return crc;
+        }
+
+        // CRC-16 of the complete bytes written so far
+        int crc16() {
+            int crc = 0;
+            for (int i = 0; i < length; i++) {
+                crc = ((crc << 8) ^ CRC16[((crc >> 8) ^ bytes[i]) & 0xFF]) & 0xFFFF;
+            }
+            return crc;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        int length() {
+            return length;
+        }
+    }
+
+    /**
+     * Tests this class: renders a few seconds of strings into a FLAC file,
+     * decodes it with FlacDecoder, and checks that every sample survived.
+     *     java FlacSink filename.flac [seconds]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("java FlacSink <filename.flac> [seconds]");
+            return;
+        }
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 30.0;
+        int n = (int) (seconds * SAMPLE_RATE);
+        short[] expected = new short[n];
+
+        FlacSink sink = new FlacSink(args[0]);
+        StringBank bank = new StringBank();
+        double[] block = new double[1000];
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i += block.length) {
+            if (i % (SAMPLE_RATE / 4) < block.length)
+                bank.noteOn(40 + (i / (SAMPLE_RATE / 4) * 7) % 36);
+            int length = Math.min(block.length, n - i);
+            if (!bank.render(block, length))
+                java.util.Arrays.fill(block, 0.0);
+            for (int t = 0; t < length; t++) {
+                double x = Math.max(-1.0, Math.min(1.0, block[t]));
+                expected[i + t] = (short) (MAX_16_BIT * x);
+            }
+            sink.write(block, length);
+        }
+        sink.close();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        short[] decoded = FlacDecoder.decode(args[0]);
+        boolean same = decoded.length == n;
+        for (int i = 0; same && i < n; i++) {
+            same = decoded[i] == expected[i];
+        }
+        long size = new java.io.File(args[0]).length();
+        System.out.printf("%.1f s in %.2f s (%.0fx real time), %d bytes, %.1f%% of WAV, %s%n",
+                          seconds, elapsed, seconds / elapsed, size, 100.0 * size / (44 + 2L * n),
+                          same ? "lossless" : "MISMATCH");
+    }
+}
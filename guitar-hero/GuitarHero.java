@@ -9,10 +9,52 @@
  *
  *  Description: Similar to GuitarHeroLite, but supports a total of 37 notes
  *                 on the chromatic scale from 110 Hz to 880 Hz.
+ *                 Before opening standard audio, the mixing loop is warmed
+ *                 up on a spare set of strings for up to the given number
+ *                 of milliseconds (java GuitarHero [warm-up ms]).
  *
  **************************************************************************** */
 
 public class GuitarHero {
+    // default time budget of the warm-up, in milliseconds
+    private static final int WARM_UP_MILLIS = 2000;
+
+    // computes the superposition of the samples and advances the simulation
+    // of each guitar string by one step
+    private static double mix(GuitarString[] samples) {
+        double sample = 0.0;
+        for (int i = 0; i < samples.length; i++) {
+            sample = sample + samples[i].sample();
+        }
+        for (int i = 0; i < samples.length; i++) {
+            samples[i].tic();
+        }
+        return sample;
+    }
+
+    // runs mix() on a spare set of strings until it is compiled
+    private static void warmUp(String keyboard, long budgetMillis) {
+        final GuitarString[] spare = new GuitarString[keyboard.length()];
+        for (int i = 0; i < keyboard.length(); i++) {
+            spare[i] = new GuitarString(440.0 * Math.pow(2, (i - 24.0) / 12));
+        }
+        WarmUp warmUp = new WarmUp(budgetMillis);
+        warmUp.run(new WarmUp.Workload() {
+            private int count;
+            public double render() {
+                if (count % 20 == 0)
+                    spare[(count / 20) % spare.length].pluck();
+                count++;
+                double sample = 0.0;
+                for (int t = 0; t < 256; t++) {
+                    sample = mix(spare);
+                }
+                return sample;
+            }
+        });
+        System.out.println(warmUp);
+    }
+
     public static void main(String[] args) {
         // Create two guitar strings, for concert A and C
         GuitarString string;
@@ -23,9 +65,25 @@ public class GuitarHero {
             string = new GuitarString(440.0 * Math.pow(2, (i - 24.0) / 12));
             samples[i] = string;
         }
+        // compile the mixing loop before StdAudio opens the audio device
+        warmUp(keyboard, args.length > 0 ? Long.parseLong(args[0]) : WARM_UP_MILLIS);
+
+        // wakes the main loop up when a key is typed
+        IdleGate gate = IdleGate.forKeyboard();
+
         // the main input loop
         while (true) {
 
+            // park instead of playing silence while no string is sounding
+            if (!StdDraw.hasNextKeyTyped()) {
+                boolean dormant = true;
+                for (int i = 0; i < keyboard.length() && dormant; i++) {
+                    dormant = samples[i].isDormant();
+                }
+                if (dormant)
+                    gate.await();
+            }
+
             // check if the user has typed a key, and, if so, process it
             if (StdDraw.hasNextKeyTyped()) {
 
@@ -42,19 +100,11 @@ public class GuitarHero {
 
             }
 
-            // Computes superposition of samples
-            double sample = 0.0;
-            for (int i = 0; i < keyboard.length(); i++) {
-                sample = sample + samples[i].sample();
-            }
+            // Computes superposition of samples and advances each string
+            double sample = mix(samples);
 
             // send the result to standard audio
             StdAudio.play(sample);
-
-            // advance the simulation of each guitar string by one step
-            for (int i = 0; i < keyboard.length(); i++) {
-                samples[i].tic();
-            }
         }
     }
 }
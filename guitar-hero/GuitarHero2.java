@@ -24,9 +24,22 @@ public class GuitarHero2 {
             string = new GuitarString(440.0 * Math.pow(2, (i - 24.0) / 12));
             samples[i] = string;
         }
+        // wakes the main loop up when a key is typed
+        IdleGate gate = IdleGate.forKeyboard();
+
         // the main input loop
         while (true) {
 
+            // park instead of playing silence while no string is sounding
+            if (!StdDraw.hasNextKeyTyped()) {
+                boolean dormant = true;
+                for (int i = 0; i < keyboard.length() && dormant; i++) {
+                    dormant = samples[i].isDormant();
+                }
+                if (dormant)
+                    gate.await();
+            }
+
             // check if the user has typed a key, and, if so, process it
             if (StdDraw.hasNextKeyTyped()) {
 
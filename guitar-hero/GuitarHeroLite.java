@@ -23,10 +23,16 @@ public class GuitarHeroLite {
         GuitarString stringA = new GuitarString(CONCERT_A);
         GuitarString stringC = new GuitarString(CONCERT_C);
 
+        // wakes the main loop up when a key is typed
+        IdleGate gate = IdleGate.forKeyboard();
 
         // the main input loop
         while (true) {
 
+            // park instead of playing silence while no string is sounding
+            if (!StdDraw.hasNextKeyTyped() && stringA.isDormant() && stringC.isDormant())
+                gate.await();
+
             // check if the user has typed a key, and, if so, process it
             if (StdDraw.hasNextKeyTyped()) {
  
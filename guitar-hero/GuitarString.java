@@ -21,6 +21,15 @@ public class GuitarString {
     // YOUR INSTANCE VARIABLES HERE
     private int n; // holds the size of the Ringbuffer array
     private RingBuffer buffer; // Creates RingBuffer array
+    private double energy; // sum of the absolute values in the RingBuffer
+    private double decay = DECAY; // energy decay factor applied on every tic
+
+    // energy decay factor of a guitar string
+    private static final double DECAY = 0.996;
+
+    // average absolute sample below which a string is inaudible
+    // (less than one step of 16-bit audio)
+    private static final double DORMANT_LEVEL = 1.0 / 32768;
 
     // creates a guitar string of the specified frequency,
     // using sampling rate of 44,100
@@ -42,6 +51,7 @@ public class GuitarString {
         buffer = new RingBuffer(n);
         for (int i = 0; i < n; i++) {
             buffer.enqueue(init[i]);
+            energy += Math.abs(init[i]);
         }
     }
 
@@ -55,10 +65,13 @@ public class GuitarString {
     // plucks the guitar string (by replacing the buffer with white noise)
     public void pluck() {
         // YOUR CODE HERE
+        energy = 0.0;
         for (int i = 0; i < n; i++) {
             if (buffer.isFull())
                 buffer.dequeue();
-            buffer.enqueue(StdRandom.uniform(-0.5, 0.5));
+            double x = StdRandom.uniform(-0.5, 0.5);
+            buffer.enqueue(x);
+            energy += Math.abs(x);
         }
     }
 
@@ -67,7 +80,9 @@ public class GuitarString {
         // YOUR CODE HERE
         double firstnum = buffer.dequeue();
         double secondnum = buffer.peek();
-        buffer.enqueue(((firstnum + secondnum) / 2) * 0.996);
+        double next = ((firstnum + secondnum) / 2) * decay;
+        buffer.enqueue(next);
+        energy += Math.abs(next) - Math.abs(firstnum);
     }
 
     // returns the current sample
@@ -76,6 +91,23 @@ public class GuitarString {
         return buffer.peek();
     }
 
+    // returns the average absolute value of the samples in the ring buffer
+    public double amplitude() {
+        return energy / n;
+    }
+
+    // sets the energy decay factor (0.996 by default); a smaller factor
+    // makes the string die out sooner
+    public void setDecay(double decay) {
+        this.decay = decay;
+    }
+
+    // is this string silent (every sample below one step of 16-bit audio,
+    // on average), so that it can be skipped until it is plucked again?
+    public boolean isDormant() {
+        return energy < DORMANT_LEVEL * n;
+    }
+
 
     // tests and calls every constructor and instance method in this class
     public static void main(String[] args) {
@@ -88,6 +120,7 @@ public class GuitarString {
         // to the average of the first two numbers multiplied by the
         // energy decay factor
         System.out.println(nye.sample());
+        System.out.println(nye.isDormant()); // false right after a pluck
     }
 
 }
@@ -0,0 +1,89 @@
+/* *****************************************************************************
+ *  Compilation:  javac IdleGate.java
+ *  Execution:    java IdleGate
+ *
+ *  An IdleGate lets a main loop park its thread while there is nothing to
+ *  play, instead of spinning on StdDraw.hasNextKeyTyped() or
+ *  MidiSource.isEmpty(). Producers (the AWT key listener installed by
+ *  forKeyboard(), or a MidiSource given the gate with setIdleGate()) call
+ *  wake() when input arrives, which unparks the loop at once.
+ *
+ **************************************************************************** */
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.event.AWTEventListener;
+import java.awt.event.KeyEvent;
+import java.util.concurrent.locks.LockSupport;
+
+public final class IdleGate {
+    private volatile Thread waiter;    // thread parked in await(), if any
+    private volatile boolean pending;  // wake() was called since the last await()
+
+    /**
+     * Returns a gate that is woken every time a key is typed in any window
+     * of this program, including the standard drawing window.
+     *
+     * @return the gate
+     */
+    public static IdleGate forKeyboard() {
+        final IdleGate gate = new IdleGate();
+        final Runnable wake = new Runnable() {
+            public void run() {
+                gate.wake();
+            }
+        };
+        Toolkit.getDefaultToolkit().addAWTEventListener(new AWTEventListener() {
+            public void eventDispatched(AWTEvent event) {
+                // AWT event listeners see the event before StdDraw does, so
+                // wake up once the event has been dispatched and the key is
+                // available from StdDraw.nextKeyTyped()
+                if (event.getID() == KeyEvent.KEY_TYPED)
+                    EventQueue.invokeLater(wake);
+            }
+        }, AWTEvent.KEY_EVENT_MASK);
+        return gate;
+    }
+
+    // signals that input has arrived, unparking the thread in await()
+    public void wake() {
+        pending = true;
+        Thread thread = waiter;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    // parks the calling thread until wake() is called; returns immediately
+    // if wake() was called since the last await()
+    public void await() {
+        waiter = Thread.currentThread();
+        while (!pending) {
+            LockSupport.park(this);
+        }
+        pending = false;
+        waiter = null;
+    }
+
+    // tests this class: parks the main thread until another thread wakes it
+    public static void main(String[] args) throws InterruptedException {
+        final IdleGate gate = new IdleGate();
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                gate.wake();
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        gate.await();
+        System.out.printf("woken after %.1f ms%n", (System.nanoTime() - start) / 1e6);
+        gate.wake();
+        gate.await(); // returns at once
+        producer.join();
+    }
+}
@@ -0,0 +1,174 @@
+/* *****************************************************************************
+ *  Compilation:  javac LineSink.java
+ *  Execution:    java LineSink [buffer frames]
+ *
+ *  A LineSink is an AudioSink that writes to a SourceDataLine it opens
+ *  itself, with a buffer of the given number of frames, instead of going
+ *  through StdAudio (whose buffer size and format are fixed). A smaller
+ *  buffer means less latency between a block being written and it being
+ *  heard, but less slack before the line runs dry; at 44,100 Hz, 256
+ *  frames is about 5.8 ms.
+ *
+ *  Samples are written as signed 16-bit little-endian PCM, mono or with
+ *  the same signal on every channel. Each block, of doubles or floats, is
+ *  clipped and converted in one pass into a byte array that is reused for
+ *  every write, so writing never allocates.
+ *
+ **************************************************************************** */
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+public final class LineSink implements AudioSink {
+    private static final int SAMPLE_RATE = 44100;
+    private static final double MAX_16_BIT = Short.MAX_VALUE;
+
+    // largest number of frames converted per write to the line
+    private static final int CHUNK_FRAMES = 1024;
+
+    private final SourceDataLine line;
+    private final int channels;
+    private final int frameSize;        // bytes per frame
+    private final byte[] bytes;         // converted samples, reused for every write
+    private final long bufferNanos;     // time to play a full buffer
+    private long underruns;             // writes that found the line's buffer empty
+    private long lastWrite = -1;        // System.nanoTime() of the last write, or -1
+
+    /**
+     * Opens a 44,100 Hz mono line with the given buffer size.
+     *
+     * @param bufferFrames the size of the line's buffer, in frames
+     * @throws RuntimeException if the line cannot be opened
+     */
+    public LineSink(int bufferFrames) {
+        this(SAMPLE_RATE, 1, bufferFrames);
+    }
+
+    /**
+     * Opens a line with the given format and buffer size. The device may
+     * round the buffer size; see latencyMillis() for the one it chose.
+     *
+     * @param sampleRate the number of frames per second
+     * @param channels the number of channels, each playing the same signal
+     * @param bufferFrames the size of the line's buffer, in frames
+     * @throws IllegalArgumentException if an argument is not positive
+     * @throws RuntimeException if the line cannot be opened
+     */
+    public LineSink(float sampleRate, int channels, int bufferFrames) {
+        if (sampleRate <= 0 || channels <= 0 || bufferFrames <= 0)
+            throw new IllegalArgumentException("sample rate, channels and buffer size must be positive");
+        this.channels = channels;
+        this.frameSize = 2 * channels;
+        this.bytes = new byte[CHUNK_FRAMES * frameSize];
+        AudioFormat format = new AudioFormat(sampleRate, 16, channels, true, false);
+        try {
+            line = AudioSystem.getSourceDataLine(format);
+            line.open(format, bufferFrames * frameSize);
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            throw new RuntimeException("Unable to open audio line: " + e.getMessage());
+        }
+        bufferNanos = (long) (1e9 * line.getBufferSize() / frameSize / sampleRate);
+        line.start();
+    }
+
+    // writes a block of samples
+    public void write(double[] samples, int length) {
+        for (int offset = 0; offset < length; offset += CHUNK_FRAMES) {
+            int n = Math.min(CHUNK_FRAMES, length - offset);
+            int j = 0;
+            for (int i = offset; i < offset + n; i++) {
+                double x = samples[i];
+                if (x < -1.0) x = -1.0;
+                if (x > +1.0) x = +1.0;
+                j = put((short) (MAX_16_BIT * x), j);
+            }
+            send(j);
+        }
+    }
+
+    // writes a block of samples
+    public void write(float[] samples, int length) {
+        for (int offset = 0; offset < length; offset += CHUNK_FRAMES) {
+            int n = Math.min(CHUNK_FRAMES, length - offset);
+            int j = 0;
+            for (int i = offset; i < offset + n; i++) {
+                float x = samples[i];
+                if (x < -1.0f) x = -1.0f;
+                if (x > +1.0f) x = +1.0f;
+                j = put((short) (MAX_16_BIT * x), j);
+            }
+            send(j);
+        }
+    }
+
+    // puts a sample on every channel of a frame at bytes[j] and returns the next frame's index
+    private int put(short s, int j) {
+        byte lo = (byte) s;
+        byte hi = (byte) (s >> 8);
+        for (int c = 0; c < channels; c++) {
+            bytes[j++] = lo;
+            bytes[j++] = hi;
+        }
+        return j;
+    }
+
+    // writes the first n converted bytes to the line, blocking while it is
+    // full; a line found empty counts as an underrun only if the previous
+    // write was less than a buffer ago (not after the writer was idle)
+    private void send(int n) {
+        long now = System.nanoTime();
+        if (lastWrite >= 0 && now - lastWrite < bufferNanos && line.available() >= line.getBufferSize())
+            underruns++;
+        line.write(bytes, 0, n);
+        lastWrite = System.nanoTime();
+    }
+
+    // plays what is left in the line's buffer and closes it
+    public void close() {
+        line.drain();
+        line.stop();
+        line.close();
+    }
+
+    // size of the line's buffer, in frames, as chosen by the device
+    public int bufferFrames() {
+        return line.getBufferSize() / frameSize;
+    }
+
+    // output latency of a full buffer, in milliseconds
+    public double latencyMillis() {
+        return 1000.0 * bufferFrames() / line.getFormat().getFrameRate();
+    }
+
+    // number of writes that found the line's buffer empty while playing (audible gaps)
+    public long underruns() {
+        return underruns;
+    }
+
+    /**
+     * Tests this class: plays an arpeggio with the given buffer size and
+     * reports the latency and the underruns.
+     *
+     * @param args the size of the buffer in frames (default 256)
+     */
+    public static void main(String[] args) {
+        int bufferFrames = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        LineSink sink = new LineSink(bufferFrames);
+        System.out.printf("buffer %d frames, latency %.1f ms%n", sink.bufferFrames(), sink.latencyMillis());
+
+        StringBank bank = new StringBank();
+        double[] block = new double[64];
+        int[] notes = { 48, 52, 55, 60, 64, 67, 72 };
+        for (int i = 0; i < 4 * SAMPLE_RATE / block.length; i++) {
+            if (i % 40 == 0)
+                bank.noteOn(notes[i / 40 % notes.length]);
+            if (!bank.render(block, block.length))
+                java.util.Arrays.fill(block, 0.0);     // nothing sounding
+            sink.write(block, block.length);
+        }
+        sink.close();
+        System.out.println(sink.underruns() + " underruns");
+    }
+}
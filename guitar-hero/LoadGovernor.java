@@ -0,0 +1,155 @@
+/* *****************************************************************************
+ *  Compilation:  javac LoadGovernor.java
+ *  Execution:    java LoadGovernor
+ *
+ *  A LoadGovernor watches how long each block takes to render compared to
+ *  the block's duration (its deadline) and decides how much quality to
+ *  give up so that the output never falls behind. Under pressure it
+ *  degrades one level at a time:
+ *
+ *      NORMAL  everything is played
+ *      CULL    strings that have decayed below CULL_LEVEL are dropped
+ *      CAP     at most MAX_VOICES strings sound per channel, quietest dropped
+ *      CHEAP   strings are damped so that they die out sooner
+ *
+ *  and it restores one level at a time once the load has stayed low for
+ *  RESTORE_BLOCKS blocks. The governor never prints or allocates; update()
+ *  returns true on each change so that the caller can report it.
+ *
+ **************************************************************************** */
+
+public final class LoadGovernor {
+    // levels, from best to cheapest
+    public static final int NORMAL = 0;
+    public static final int CULL   = 1;
+    public static final int CAP    = 2;
+    public static final int CHEAP  = 3;
+    private static final String[] NAMES = { "normal", "cull", "cap", "cheap" };
+
+    // amplitude below which strings are dropped from CULL on (about -54 dB)
+    public static final double CULL_LEVEL = 1.0 / 1024;
+
+    // most strings sounding per channel from CAP on
+    public static final int MAX_VOICES = 12;
+
+    // fraction of the deadline above which to degrade, and below which to restore
+    private static final double HIGH = 0.75;
+    private static final double LOW  = 0.40;
+
+    // weight of the newest block in the smoothed load
+    private static final double SMOOTHING = 0.2;
+
+    // blocks to wait after a change before degrading again on a high load
+    // (a missed deadline degrades at once), and number of
+    // consecutive low-load blocks before restoring a level
+    private static final int HOLD_BLOCKS = 16;
+    private static final int RESTORE_BLOCKS = 256;
+
+    private final long deadlineNanos;   // duration of one block
+    private double load;                // smoothed render time / deadline
+    private int level = NORMAL;
+    private int previous = NORMAL;      // level before the last change
+    private int sinceChange;            // blocks since the last change
+    private int calm;                   // consecutive blocks with a low load
+    private long changes;               // number of level changes
+
+    /**
+     * Creates a governor for blocks of the given duration.
+     *
+     * @param deadlineNanos the duration of one block, in nanoseconds
+     */
+    public LoadGovernor(long deadlineNanos) {
+        if (deadlineNanos <= 0)
+            throw new IllegalArgumentException("deadline must be positive");
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Accounts for one rendered block.
+     *
+     * @param renderNanos the time it took to render the block
+     * @return true if the level changed
+     */
+    public boolean update(long renderNanos) {
+        double blockLoad = (double) renderNanos / deadlineNanos;
+        load += SMOOTHING * (blockLoad - load);
+        sinceChange++;
+
+        // degrade at once on a missed deadline, or when the load stays high
+        if (level < CHEAP && (blockLoad >= 1.0 || (load > HIGH && sinceChange >= HOLD_BLOCKS))) {
+            calm = 0;
+            return change(level + 1);
+        }
+
+        if (load < LOW)
+            calm++;
+        else
+            calm = 0;
+        if (calm >= RESTORE_BLOCKS && level > NORMAL) {
+            calm = 0;
+            return change(level - 1);
+        }
+        return false;
+    }
+
+    private boolean change(int next) {
+        previous = level;
+        level = next;
+        sinceChange = 0;
+        changes++;
+        return true;
+    }
+
+    // current level
+    public int level() {
+        return level;
+    }
+
+    // level before the last change
+    public int previousLevel() {
+        return previous;
+    }
+
+    // smoothed ratio of render time to deadline
+    public double load() {
+        return load;
+    }
+
+    // number of level changes so far
+    public long changes() {
+        return changes;
+    }
+
+    // amplitude below which strings are dropped at the current level (0 for none)
+    public double cullLevel() {
+        return level >= CULL ? CULL_LEVEL : 0.0;
+    }
+
+    // most strings sounding per channel at the current level
+    public int maxVoices() {
+        return level >= CAP ? MAX_VOICES : StringBank.NOTES;
+    }
+
+    // are strings damped at the current level?
+    public boolean damped() {
+        return level >= CHEAP;
+    }
+
+    // name of a level
+    public static String name(int level) {
+        return NAMES[level];
+    }
+
+    // tests this class with a load that rises past the deadline and falls back
+    public static void main(String[] args) {
+        long deadline = 5000000;
+        LoadGovernor governor = new LoadGovernor(deadline);
+        for (int block = 0; block < 2000; block++) {
+            long nanos = block < 200 ? deadline / 2 : block < 400 ? deadline * 3 / 2 : deadline / 10;
+            if (governor.update(nanos))
+                System.out.printf("block %4d: %s -> %s (load %.2f)%n", block,
+                                  name(governor.previousLevel()), name(governor.level()),
+                                  governor.load());
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/* *****************************************************************************
+ *  Compilation:  javac MergedMidiSource.java
+ *  Execution:    java MergedMidiSource [-c] [filename.mid ...]
+ *
+ *  A MergedMidiSource plays several MidiSources (controllers and MIDI
+ *  files) as one instrument. Each source keeps its own single-producer
+ *  queue, filled by its own receiver thread, so producers never contend
+ *  with each other and there is no lock anywhere. Once per block the
+ *  consumer merges the messages received before the end of the block
+ *  from all the queues, in timestamp order, with a binary heap of the
+ *  sources keyed by the time of their next message (a k-way merge, in
+ *  O(log k) per message for k sources, without allocating).
+ *
+ *  The channels of each source can be remapped, so that, for example,
+ *  two controllers that both send on channel 0 play different channels.
+ *
+ **************************************************************************** */
+
+public final class MergedMidiSource {
+    private static final int CHANNELS = 16;
+
+    private final MidiSource[] sources;
+    private final int[][] channelMap;   // channelMap[s][c] = channel that channel c of source s plays
+
+    // min-heap of the sources whose next message is due, keyed by its time
+    private final int[] heap;
+    private final long[] times;         // times[s] = time of the next message of source s
+    private int heapSize;
+    private long cutoff;                // end of the block the heap was built for
+    private long lastTime;              // time of the message last returned
+
+    /**
+     * Merges the given sources. Their channels are initially not remapped.
+     *
+     * @param sources the sources, controllers or MIDI files
+     * @throws IllegalArgumentException if there are no sources
+     */
+    public MergedMidiSource(MidiSource... sources) {
+        if (sources.length == 0)
+            throw new IllegalArgumentException("no MIDI sources to merge");
+        this.sources = sources.clone();
+        channelMap = new int[sources.length][CHANNELS];
+        for (int s = 0; s < sources.length; s++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                channelMap[s][c] = c;
+            }
+        }
+        heap = new int[sources.length];
+        times = new long[sources.length];
+    }
+
+    // number of sources
+    public int size() {
+        return sources.length;
+    }
+
+    // the given source
+    public MidiSource source(int s) {
+        return sources[s];
+    }
+
+    /**
+     * Plays the messages of one channel of a source on another channel.
+     *
+     * @param source the index of the source
+     * @param from the channel of the source's messages
+     * @param to the channel to play them on
+     */
+    public void remap(int source, int from, int to) {
+        if (from < 0 || from >= CHANNELS || to < 0 || to >= CHANNELS)
+            throw new IllegalArgumentException("channel must be between 0 and 15");
+        channelMap[source][from] = to;
+    }
+
+    /**
+     * Plays all the channels of a source on one channel.
+     *
+     * @param source the index of the source
+     * @param to the channel to play them on
+     */
+    public void remap(int source, int to) {
+        for (int c = 0; c < CHANNELS; c++) {
+            remap(source, c, to);
+        }
+    }
+
+    // starts all the sources
+    public void start() {
+        for (MidiSource source : sources) {
+            source.start();
+        }
+    }
+
+    // closes all the sources
+    public void close() {
+        for (MidiSource source : sources) {
+            source.close();
+        }
+    }
+
+    /**
+     * Wakes up the given gate every time a message is queued by any of the
+     * sources (see {@link MidiSource#setIdleGate(IdleGate)}).
+     *
+     * @param gate the gate to wake up, or null for none
+     */
+    public void setIdleGate(IdleGate gate) {
+        for (MidiSource source : sources) {
+            source.setIdleGate(gate);
+        }
+    }
+
+    // is any source still active?
+    public boolean isActive() {
+        for (MidiSource source : sources) {
+            if (source.isActive())
+                return true;
+        }
+        return false;
+    }
+
+    // are all the queues empty?
+    public boolean isEmpty() {
+        if (heapSize > 0)
+            return false;
+        for (MidiSource source : sources) {
+            if (!source.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes and returns the earliest message, over all the sources,
+     * received before the given time, with its channel remapped, or returns
+     * -1 if there is none. Messages received while a block is being drained
+     * are left for the next block, so call it with the same time until it
+     * returns -1, once per block.
+     *
+     * @param until the System.nanoTime() of the end of the block
+     * @return the packed message, or -1
+     */
+    public int poll(long until) {
+        if (heapSize == 0 || until != cutoff)
+            build(until);
+        if (heapSize == 0)
+            return -1;
+
+        int s = heap[0];
+        lastTime = times[s];
+        int message = sources[s].nextPackedMessage();
+        if (!sources[s].isEmpty() && (times[s] = sources[s].nextTime()) - cutoff < 0) {
+            siftDown(0);
+        }
+        else {
+            heap[0] = heap[--heapSize];
+            siftDown(0);
+        }
+        if (MidiQueue.status(message) < 0xF0)
+            message = (message & ~0x0F) | channelMap[s][MidiQueue.channel(message)];
+        return message;
+    }
+
+    // System.nanoTime() at which the message last returned by poll() was received
+    public long lastTime() {
+        return lastTime;
+    }
+
+    /**
+     * Drains the messages received before the end of a block into a
+     * synthesizer, in timestamp order.
+     *
+     * @param synth the synthesizer
+     * @param until the System.nanoTime() of the end of the block
+     */
+    public void drain(ParallelSynth synth, long until) {
+        int message;
+        while ((message = poll(until)) != -1) {
+            synth.message(message);
+        }
+    }
+
+    // builds the heap of the sources with a message received before until
+    private void build(long until) {
+        cutoff = until;
+        heapSize = 0;
+        for (int s = 0; s < sources.length; s++) {
+            if (!sources[s].isEmpty() && (times[s] = sources[s].nextTime()) - until < 0)
+                heap[heapSize++] = s;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void siftDown(int i) {
+        int s = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && times[heap[child + 1]] - times[heap[child]] < 0)
+                child++;
+            if (times[heap[child]] - times[s] >= 0)
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = s;
+    }
+
+    /**
+     * Plays MIDI files and controllers together, each on its own channel:
+     *     java MergedMidiSource [-c] [filename.mid ...]
+     * where -c adds every connected MIDI controller.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        java.util.ArrayList<MidiSource> list = new java.util.ArrayList<MidiSource>();
+        for (String arg : args) {
+            if (arg.equals("-c")) {
+                for (MidiSource controller : MidiSource.controllers(false)) {
+                    list.add(controller);
+                }
+            }
+            else
+                list.add(new MidiSource(arg, false, false));
+        }
+        if (list.isEmpty()) {
+            System.out.println("java MergedMidiSource [-c] [<filename.mid> ...]");
+            return;
+        }
+
+        MergedMidiSource merged = new MergedMidiSource(list.toArray(new MidiSource[0]));
+        for (int s = 0; s < merged.size(); s++) {
+            merged.remap(s, s % CHANNELS);
+        }
+
+        int workerCount = Math.max(1, Math.min(merged.size(), Runtime.getRuntime().availableProcessors() - 1));
+        ParallelSynth synth = new ParallelSynth(256, workerCount);
+        AudioSink sink = new StdAudioSink();
+        double[] block = new double[synth.blockSize()];
+        long messages = 0;
+        long late = 0;          // messages older than one already delivered (should be none)
+        long last = Long.MIN_VALUE;
+        IdleGate gate = new IdleGate();
+        merged.setIdleGate(gate);
+        merged.start();
+        while (merged.isActive() || !merged.isEmpty() || synth.activeCount() > 0) {
+
+            // park instead of rendering silence while nothing is sounding
+            if (merged.isEmpty() && synth.activeCount() == 0) {
+                gate.await();
+                continue;
+            }
+            long until = System.nanoTime();
+            int message;
+            while ((message = merged.poll(until)) != -1) {
+                if (merged.lastTime() < last)
+                    late++;
+                last = merged.lastTime();
+                synth.message(message);
+                messages++;
+            }
+            synth.render(block);
+            sink.write(block, block.length);
+        }
+        synth.close();
+        sink.close();
+        System.out.println(messages + " messages from " + merged.size() + " sources, "
+                           + late + " out of order");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,169 @@
+/* *****************************************************************************
+ *  Compilation:  javac MidiFilter.java
+ *  Execution:    java MidiFilter
+ *
+ *  A MidiFilter decides, as MIDI messages arrive, which ones are queued for
+ *  the engine. Message types the engine does not use are dropped before
+ *  they reach the queue, and continuous controller messages (control
+ *  change, pitch bend, aftertouch) are coalesced: a new value for the same
+ *  controller and channel replaces the one still waiting in the queue, so
+ *  the consumer sees at most one per controller between two notes in a
+ *  block. Note on and note off messages are always queued, in the order
+ *  they arrive, and controller changes never move across them.
+ *
+ *  By default it passes note on, note off, control change (coalesced) and
+ *  program change, and drops pitch bend, aftertouch and all system
+ *  messages (clock, active sensing, ...). Use accept() and coalesce() to
+ *  configure it.
+ *
+ **************************************************************************** */
+
+import javax.sound.midi.ShortMessage;
+
+public final class MidiFilter {
+    // accepted and coalesced message types, indexed by command (channel
+    // messages) or by status byte (system messages, 0xF0 to 0xFF)
+    private final boolean[] accepted = new boolean[256];
+    private final boolean[] coalesced = new boolean[256];
+    private volatile long dropped;  // messages dropped by the filter
+
+    // creates a filter with the default configuration
+    public MidiFilter() {
+        accept(ShortMessage.NOTE_OFF, true);
+        accept(ShortMessage.NOTE_ON, true);
+        accept(ShortMessage.CONTROL_CHANGE, true);
+        accept(ShortMessage.PROGRAM_CHANGE, true);
+        coalesce(ShortMessage.CONTROL_CHANGE, true);
+        coalesce(ShortMessage.PITCH_BEND, true);
+        coalesce(ShortMessage.POLY_PRESSURE, true);
+        coalesce(ShortMessage.CHANNEL_PRESSURE, true);
+    }
+
+    // index of a message type: command for a channel message, status for a system message
+    private static int type(int status) {
+        return status >= 0xF0 ? status : status & 0xF0;
+    }
+
+    /**
+     * Sets whether a message type is queued. Note on and note off messages
+     * are always queued.
+     *
+     * @param type the command of a channel message (such as
+     *             ShortMessage.PITCH_BEND), or the status of a system
+     *             message (such as ShortMessage.TIMING_CLOCK)
+     * @param accept true to queue messages of this type, false to drop them
+     * @return this filter
+     * @throws IllegalArgumentException if type is not a status byte
+     */
+    public MidiFilter accept(int type, boolean accept) {
+        if (type < 0x80 || type > 0xFF)
+            throw new IllegalArgumentException("not a MIDI command or status: " + type);
+        int command = type(type);
+        if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF)
+            accept = true;
+        accepted[command] = accept;
+        return this;
+    }
+
+    /**
+     * Sets whether messages of a continuous controller type (control change,
+     * pitch bend, poly pressure, channel pressure) replace the last unread
+     * one for the same controller and channel. Other types are never coalesced.
+     *
+     * @param type the command of the message type
+     * @param coalesce true to coalesce messages of this type
+     * @return this filter
+     * @throws IllegalArgumentException if type is not a status byte
+     */
+    public MidiFilter coalesce(int type, boolean coalesce) {
+        if (type < 0x80 || type > 0xFF)
+            throw new IllegalArgumentException("not a MIDI command or status: " + type);
+        coalesced[type(type)] = coalesce;
+        return this;
+    }
+
+    // is a (packed) message of this type queued?
+    public boolean accepts(int message) {
+        return accepted[type(MidiQueue.status(message))];
+    }
+
+    /**
+     * Queues a packed message, unless the filter drops it, coalescing it
+     * into the last unread one for the same controller if configured to
+     * (producer thread of the queue only).
+     *
+     * @param queue the queue
+     * @param message the packed message
+     * @param time the System.nanoTime() at which it was received
+     * @return true if the message was queued or coalesced, false if it was dropped
+     */
+    public boolean offer(MidiQueue queue, int message, long time) {
+        int type = type(MidiQueue.status(message));
+        if (!accepted[type]) {
+            dropped++;
+            return false;
+        }
+        if (coalesced[type])
+            return queue.coalesce(message, time);
+        return queue.offer(message, time);
+    }
+
+    // number of messages dropped by the filter
+    public long dropped() {
+        return dropped;
+    }
+
+    // tests this class with the message flood of an expressive controller
+    public static void main(String[] args) throws Exception {
+        MidiFilter filter = new MidiFilter().accept(ShortMessage.PITCH_BEND, true);
+        MidiQueue queue = new MidiQueue(4096);
+        int received = 0;
+
+        // per block: a clock tick, a chord, and a sweep of the mod wheel,
+        // pitch bend and channel pressure, consumed at the end of the block
+        int consumed = 0;
+        int notes = 0;
+        int lastNote = -1;
+        int lastValue = -1;
+        boolean ordered = true;
+        for (int block = 0; block < 1000; block++) {
+            for (int i = 0; i < 64; i++) {
+                int value = (block + i) & 0x7F;
+                int[] messages = {
+                    MidiQueue.pack(new ShortMessage(ShortMessage.TIMING_CLOCK)),
+                    MidiQueue.pack(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 1, value)),
+                    MidiQueue.pack(new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, value)),
+                    MidiQueue.pack(new ShortMessage(ShortMessage.CHANNEL_PRESSURE, 0, value, 0)),
+                };
+                for (int message : messages) {
+                    filter.offer(queue, message, System.nanoTime());
+                    received++;
+                }
+                if (i % 16 == 0) {
+                    int note = (block * 4 + i / 16) % 128;
+                    filter.offer(queue, MidiQueue.pack(new ShortMessage(ShortMessage.NOTE_ON, 0, note, 100)),
+                                 System.nanoTime());
+                    received++;
+                }
+            }
+            for (int message = queue.poll(); message != -1; message = queue.poll()) {
+                consumed++;
+                if (MidiQueue.command(message) == ShortMessage.NOTE_ON) {
+                    int note = MidiQueue.data1(message);
+                    if (lastNote != -1 && note != (lastNote + 1) % 128)
+                        ordered = false;
+                    lastNote = note;
+                    notes++;
+                }
+                else if (MidiQueue.command(message) == ShortMessage.CONTROL_CHANGE) {
+                    lastValue = MidiQueue.data2(message);
+                }
+            }
+            if (lastValue != ((block + 63) & 0x7F))
+                ordered = false;        // not the latest value
+        }
+        System.out.printf("received %d, dropped %d, coalesced %d, consumed %d%n",
+                          received, filter.dropped(), queue.coalesced(), consumed);
+        System.out.println("notes " + notes + ", in order with latest values: " + ordered);
+    }
+}
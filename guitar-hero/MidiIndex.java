@@ -0,0 +1,476 @@
+/* *****************************************************************************
+ *  Compilation:  javac MidiIndex.java
+ *  Execution:    java MidiIndex filename.mid [seconds]
+ *
+ *  A MidiIndex is a precomputed, seekable view of the events in a MIDI
+ *  file. Every short message is stored with its tick and its sample time
+ *  (computed through the tempo map), and every CHECKPOINT_INTERVAL events
+ *  a snapshot of the sounding notes is kept, so that the state of the song
+ *  at any time can be found with one binary search plus a bounded replay.
+ *
+ *  The index can be saved next to the MIDI file (filename.mid.idx) and is
+ *  reloaded from there when it is newer than the MIDI file.
+ *
+ **************************************************************************** */
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ *  The {@code MidiIndex} class maps the events of a MIDI file to sample
+ *  times and keeps periodic checkpoints of which notes are sounding, so
+ *  that a player or renderer can seek to any time in O(log n).
+ */
+public final class MidiIndex {
+
+    // sampling rate used for sample times, same as GuitarString
+    public static final int SAMPLE_RATE = 44100;
+
+    // number of events between two snapshots of the sounding notes
+    private static final int CHECKPOINT_INTERVAL = 1024;
+
+    // 16 channels of 128 notes each
+    public static final int NOTES = 16 * 128;
+
+    // file format of a saved index
+    private static final int MAGIC = 0x4D494458; // "MIDX"
+    private static final int VERSION = 1;
+
+    // MetaMessage type for a tempo change
+    private static final int MIDI_SET_TEMPO = 0x51;
+
+    // default tempo of a MIDI file, in microseconds per quarter note
+    private static final int DEFAULT_TEMPO = 500000;
+
+    private final float divisionType;   // Sequence.PPQ or a SMPTE frame rate
+    private final int resolution;       // ticks per quarter note (or per frame)
+
+    // tempo map: segment i starts at tempoTicks[i] / tempoSamples[i]
+    private final long[] tempoTicks;
+    private final double[] tempoSamples;
+    private final int[] tempos;         // microseconds per quarter note
+
+    // events, in playing order
+    private final long[] ticks;
+    private final long[] samples;
+    private final int[] messages;       // packed status | data1 << 8 | data2 << 16
+
+    // checkpoints[k] holds the velocity of every sounding note just before
+    // event k * CHECKPOINT_INTERVAL (0 if the note is not sounding)
+    private final byte[][] checkpoints;
+
+    private final long length;          // sample time of the end of the song
+
+    private MidiIndex(float divisionType, int resolution,
+                      long[] tempoTicks, double[] tempoSamples, int[] tempos,
+                      long[] ticks, long[] samples, int[] messages,
+                      byte[][] checkpoints, long length) {
+        this.divisionType = divisionType;
+        this.resolution   = resolution;
+        this.tempoTicks   = tempoTicks;
+        this.tempoSamples = tempoSamples;
+        this.tempos       = tempos;
+        this.ticks        = ticks;
+        this.samples      = samples;
+        this.messages     = messages;
+        this.checkpoints  = checkpoints;
+        this.length       = length;
+    }
+
+    /**
+     * Builds the index of a MIDI sequence.
+     *
+     * @param sequence the sequence to index
+     * @return the index
+     */
+    public static MidiIndex build(Sequence sequence) {
+        // collect the events of every track; a stable sort by tick keeps
+        // the order of events within a track and favours lower tracks
+        ArrayList<MidiEvent> events = new ArrayList<MidiEvent>();
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                events.add(track.get(i));
+            }
+        }
+        events.sort((a, b) -> Long.compare(a.getTick(), b.getTick()));
+
+        float divisionType = sequence.getDivisionType();
+        int resolution = sequence.getResolution();
+
+        // first pass: tempo map
+        ArrayList<long[]> tempoChanges = new ArrayList<long[]>();
+        tempoChanges.add(new long[] { 0, DEFAULT_TEMPO });
+        for (MidiEvent event : events) {
+            MidiMessage message = event.getMessage();
+            if (message instanceof MetaMessage
+                    && ((MetaMessage) message).getType() == MIDI_SET_TEMPO) {
+                byte[] data = ((MetaMessage) message).getData();
+                if (data.length < 3)
+                    continue;
+                int tempo = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+                long[] last = tempoChanges.get(tempoChanges.size() - 1);
+                if (last[0] == event.getTick())
+                    last[1] = tempo;
+                else
+                    tempoChanges.add(new long[] { event.getTick(), tempo });
+            }
+        }
+        int m = tempoChanges.size();
+        long[] tempoTicks = new long[m];
+        double[] tempoSamples = new double[m];
+        int[] tempos = new int[m];
+        for (int i = 0; i < m; i++) {
+            tempoTicks[i] = tempoChanges.get(i)[0];
+            tempos[i] = (int) tempoChanges.get(i)[1];
+            if (i > 0) {
+                long delta = tempoTicks[i] - tempoTicks[i - 1];
+                tempoSamples[i] = tempoSamples[i - 1]
+                        + samplesPerTick(divisionType, resolution, tempos[i - 1]) * delta;
+            }
+        }
+
+        // second pass: short messages and sounding notes
+        int n = 0;
+        for (MidiEvent event : events) {
+            if (event.getMessage() instanceof ShortMessage)
+                n++;
+        }
+        long[] ticks = new long[n];
+        long[] samples = new long[n];
+        int[] messages = new int[n];
+        byte[][] checkpoints = new byte[(n + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL][];
+        byte[] sounding = new byte[NOTES];
+        long lastTick = 0;
+        int i = 0;
+        for (MidiEvent event : events) {
+            lastTick = Math.max(lastTick, event.getTick());
+            if (!(event.getMessage() instanceof ShortMessage))
+                continue;
+            if (i % CHECKPOINT_INTERVAL == 0)
+                checkpoints[i / CHECKPOINT_INTERVAL] = sounding.clone();
+            ShortMessage message = (ShortMessage) event.getMessage();
+            ticks[i] = event.getTick();
+            messages[i] = message.getStatus() | (message.getData1() << 8) | (message.getData2() << 16);
+            apply(sounding, messages[i]);
+            i++;
+        }
+
+        for (i = 0; i < n; i++) {
+            samples[i] = tickToSample(divisionType, resolution, tempoTicks, tempoSamples, tempos,
+                                      ticks[i]);
+        }
+        long length = tickToSample(divisionType, resolution, tempoTicks, tempoSamples, tempos,
+                                   lastTick);
+        return new MidiIndex(divisionType, resolution, tempoTicks, tempoSamples, tempos,
+                             ticks, samples, messages, checkpoints, length);
+    }
+
+    /**
+     * Builds the index of a MIDI file.
+     *
+     * @param filename the name of the MIDI file
+     * @return the index
+     * @throws RuntimeException if the file is not found or not a valid MIDI file
+     */
+    public static MidiIndex build(String filename) {
+        try {
+            return build(MidiSystem.getSequence(new File(filename)));
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading file: " + filename);
+        } catch (InvalidMidiDataException e) {
+            throw new RuntimeException("Invalid MIDI file: " + filename);
+        }
+    }
+
+    /**
+     * Returns the index of a MIDI file, loading it from filename.idx if that
+     * file is up to date, or building it and saving it there otherwise.
+     * Failing to save the index is not an error.
+     *
+     * @param filename the name of the MIDI file
+     * @return the index
+     * @throws RuntimeException if the file is not found or not a valid MIDI file
+     */
+    public static MidiIndex forFile(String filename) {
+        File midi = new File(filename);
+        File saved = new File(filename + ".idx");
+        if (saved.isFile() && saved.lastModified() >= midi.lastModified()) {
+            try {
+                return load(saved.getPath());
+            } catch (RuntimeException e) {
+                // stale or damaged index, rebuild it
+            }
+        }
+        MidiIndex index = build(filename);
+        try {
+            index.save(saved.getPath());
+        } catch (RuntimeException e) {
+            // read-only directory, keep the index in memory only
+        }
+        return index;
+    }
+
+    // number of samples per tick at the given tempo
+    private static double samplesPerTick(float divisionType, int resolution, int tempo) {
+        if (divisionType == Sequence.PPQ)
+            return tempo / 1000000.0 * SAMPLE_RATE / resolution;
+        return SAMPLE_RATE / (divisionType * resolution);
+    }
+
+    // updates the sounding notes with a packed short message
+    private static void apply(byte[] sounding, int message) {
+        int command = message & 0xF0;
+        int note = (message & 0x0F) * 128 + ((message >> 8) & 0x7F);
+        int velocity = (message >> 16) & 0x7F;
+        if (command == ShortMessage.NOTE_ON)
+            sounding[note] = (byte) velocity;
+        else if (command == ShortMessage.NOTE_OFF)
+            sounding[note] = 0;
+    }
+
+    /**
+     * Converts a tick to a sample time through the tempo map.
+     *
+     * @param tick the tick
+     * @return the sample time of the tick
+     */
+    public long tickToSample(long tick) {
+        return tickToSample(divisionType, resolution, tempoTicks, tempoSamples, tempos, tick);
+    }
+
+    // converts a tick to a sample time through a tempo map
+    private static long tickToSample(float divisionType, int resolution, long[] tempoTicks,
+                                     double[] tempoSamples, int[] tempos, long tick) {
+        int i = floor(tempoTicks, tick);
+        return Math.round(tempoSamples[i]
+                + samplesPerTick(divisionType, resolution, tempos[i]) * (tick - tempoTicks[i]));
+    }
+
+    /**
+     * Converts a sample time to the last tick at or before it.
+     *
+     * @param sample the sample time
+     * @return the tick at that sample time
+     */
+    public long sampleToTick(long sample) {
+        int lo = 0;
+        int hi = tempoSamples.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (tempoSamples[mid] <= sample)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        double perTick = samplesPerTick(divisionType, resolution, tempos[lo]);
+        return tempoTicks[lo] + (long) ((sample - tempoSamples[lo]) / perTick);
+    }
+
+    // index of the last element of a that is <= key (0 if there is none)
+    private static int floor(long[] a, long key) {
+        int lo = 0;
+        int hi = a.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (a[mid] <= key)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the index of the first event at or after a sample time, or
+     * size() if there is none.
+     *
+     * @param sample the sample time
+     * @return the index of the first event to play when seeking to sample
+     */
+    public int seek(long sample) {
+        int lo = 0;
+        int hi = samples.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (samples[mid] < sample)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Fills sounding with the velocity of every note that is sounding just
+     * before an event (indexed by channel * 128 + note, 0 if silent).
+     *
+     * @param event the index of the event, from 0 to size()
+     * @param sounding an array of length NOTES to fill
+     */
+    public void sounding(int event, byte[] sounding) {
+        if (event < 0 || event > messages.length)
+            throw new IllegalArgumentException("event out of range: " + event);
+        if (sounding.length != NOTES)
+            throw new IllegalArgumentException("sounding must have length " + NOTES);
+        if (checkpoints.length == 0) {
+            java.util.Arrays.fill(sounding, (byte) 0);
+            return;
+        }
+        int k = Math.min(event / CHECKPOINT_INTERVAL, checkpoints.length - 1);
+        System.arraycopy(checkpoints[k], 0, sounding, 0, NOTES);
+        for (int i = k * CHECKPOINT_INTERVAL; i < event; i++) {
+            apply(sounding, messages[i]);
+        }
+    }
+
+    // number of events in the index
+    public int size() {
+        return messages.length;
+    }
+
+    // tick of event i
+    public long tick(int i) {
+        return ticks[i];
+    }
+
+    // sample time of event i
+    public long sample(int i) {
+        return samples[i];
+    }
+
+    // packed short message of event i: status | data1 << 8 | data2 << 16
+    public int message(int i) {
+        return messages[i];
+    }
+
+    // sample time of the end of the song
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Saves this index to a file.
+     *
+     * @param filename the name of the index file
+     * @throws RuntimeException if writing the file failed
+     */
+    public void save(String filename) {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(filename)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(SAMPLE_RATE);
+            out.writeFloat(divisionType);
+            out.writeInt(resolution);
+            out.writeLong(length);
+            out.writeInt(tempos.length);
+            for (int i = 0; i < tempos.length; i++) {
+                out.writeLong(tempoTicks[i]);
+                out.writeDouble(tempoSamples[i]);
+                out.writeInt(tempos[i]);
+            }
+            out.writeInt(messages.length);
+            for (int i = 0; i < messages.length; i++) {
+                out.writeLong(ticks[i]);
+                out.writeLong(samples[i]);
+                out.writeInt(messages[i]);
+            }
+            out.writeInt(checkpoints.length);
+            for (byte[] checkpoint : checkpoints) {
+                out.write(checkpoint);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing file: " + filename);
+        }
+    }
+
+    /**
+     * Loads an index saved with save().
+     *
+     * @param filename the name of the index file
+     * @return the index
+     * @throws RuntimeException if the file is not found or not a valid index
+     */
+    public static MidiIndex load(String filename) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(filename)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != SAMPLE_RATE)
+                throw new RuntimeException("Invalid index file: " + filename);
+            float divisionType = in.readFloat();
+            int resolution = in.readInt();
+            long length = in.readLong();
+            int m = in.readInt();
+            long[] tempoTicks = new long[m];
+            double[] tempoSamples = new double[m];
+            int[] tempos = new int[m];
+            for (int i = 0; i < m; i++) {
+                tempoTicks[i] = in.readLong();
+                tempoSamples[i] = in.readDouble();
+                tempos[i] = in.readInt();
+            }
+            int n = in.readInt();
+            long[] ticks = new long[n];
+            long[] samples = new long[n];
+            int[] messages = new int[n];
+            for (int i = 0; i < n; i++) {
+                ticks[i] = in.readLong();
+                samples[i] = in.readLong();
+                messages[i] = in.readInt();
+            }
+            byte[][] checkpoints = new byte[in.readInt()][NOTES];
+            for (byte[] checkpoint : checkpoints) {
+                in.readFully(checkpoint);
+            }
+            return new MidiIndex(divisionType, resolution, tempoTicks, tempoSamples, tempos,
+                                 ticks, samples, messages, checkpoints, length);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading file: " + filename);
+        }
+    }
+
+    /**
+     * Tests this {@code MidiIndex} data type.
+     *     java MidiIndex filename.mid [seconds]
+     * prints the size of the index and the notes sounding at the given time.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("java MidiIndex <midifile.mid> [seconds]");
+            return;
+        }
+        long start = System.nanoTime();
+        MidiIndex index = MidiIndex.forFile(args[0]);
+        System.out.printf("%d events, %.1f s, indexed in %.1f ms%n", index.size(),
+                          (double) index.length() / SAMPLE_RATE, (System.nanoTime() - start) / 1e6);
+
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 0.0;
+        long sample = (long) (seconds * SAMPLE_RATE);
+        int event = index.seek(sample);
+        byte[] sounding = new byte[NOTES];
+        index.sounding(event, sounding);
+        System.out.println("seek " + seconds + " s -> event " + event
+                           + ", tick " + index.sampleToTick(sample));
+        for (int i = 0; i < NOTES; i++) {
+            if (sounding[i] != 0)
+                System.out.println("  channel " + i / 128 + " note " + i % 128
+                                   + " velocity " + sounding[i]);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/* *****************************************************************************
+ *  Compilation:  javac MidiQueue.java
+ *  Execution:    java MidiQueue
+ *
+ *  A MidiQueue is a fixed-capacity, single-producer single-consumer queue
+ *  of short MIDI messages, packed into ints (status | data1 << 8 |
+ *  data2 << 16) and stamped with the System.nanoTime() at which they were
+ *  queued. It is backed by two preallocated arrays, so neither side ever
+ *  allocates; when the queue is full new messages are dropped and counted.
+ *
+ *  The producer may also coalesce a continuous controller message (control
+ *  change, pitch bend, or pressure) into the one for the same controller
+ *  and channel that is still waiting in the queue, by overwriting its value
+ *  in place, unless another kind of message (a note) has been queued after
+ *  it, so controller changes never move across notes. The consumer takes
+ *  each message with an atomic swap, so an overwrite either lands before
+ *  the message is consumed or fails and the message is queued normally;
+ *  no value is ever lost.
+ *
+ **************************************************************************** */
+
+import javax.sound.midi.ShortMessage;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+public final class MidiQueue {
+    private final int[] messages;      // packed short messages
+    private final long[] times;        // System.nanoTime() when queued
+    private final int mask;            // capacity - 1
+    private volatile long head;        // index of the next message to read (consumer)
+    private volatile long tail;        // index of the next message to write (producer)
+    private volatile long dropped;     // messages dropped because the queue was full
+    private volatile long discard;     // messages before this index are skipped (producer)
+
+    // atomic access to the messages, for coalescing
+    private static final VarHandle MESSAGES = MethodHandles.arrayElementVarHandle(int[].class);
+
+    // value of a slot that has been consumed
+    private static final int CONSUMED = -1;
+
+    // coalescing keys: control change by channel and controller, then pitch
+    // bend, channel pressure, and poly pressure by channel (and note)
+    private static final int PITCH_BEND_KEYS = 16 * 128;
+    private static final int CHANNEL_PRESSURE_KEYS = PITCH_BEND_KEYS + 16;
+    private static final int POLY_PRESSURE_KEYS = CHANNEL_PRESSURE_KEYS + 16;
+    private static final int KEYS = POLY_PRESSURE_KEYS + 16 * 128;
+
+    // last message queued for each key, and its index (producer only)
+    private final int[] lastMessage = new int[KEYS];
+    private final long[] lastIndex = new long[KEYS];
+    private long barrier;              // index after the last message that is not coalesced
+    private volatile long coalesced;   // messages merged into one already queued
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity the capacity of the queue, a power of two
+     */
+    public MidiQueue(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two");
+        messages = new int[capacity];
+        times = new long[capacity];
+        mask = capacity - 1;
+        java.util.Arrays.fill(lastIndex, -1);
+    }
+
+    // packs a short MIDI message into an int
+    public static int pack(ShortMessage message) {
+        return message.getStatus() | (message.getData1() << 8) | (message.getData2() << 16);
+    }
+
+    // status byte of a packed message
+    public static int status(int message) {
+        return message & 0xFF;
+    }
+
+    // command of a packed message (status without the channel)
+    public static int command(int message) {
+        return message & 0xF0;
+    }
+
+    // channel of a packed message
+    public static int channel(int message) {
+        return message & 0x0F;
+    }
+
+    // first data byte of a packed message (the key of a NOTE_ON)
+    public static int data1(int message) {
+        return (message >> 8) & 0x7F;
+    }
+
+    // second data byte of a packed message (the velocity of a NOTE_ON)
+    public static int data2(int message) {
+        return (message >> 16) & 0x7F;
+    }
+
+    /**
+     * Adds a message to the end of the queue (producer thread only).
+     *
+     * @param message the packed message
+     * @param time the System.nanoTime() at which it was received
+     * @return false if the queue was full and the message was dropped
+     */
+    public boolean offer(int message, long time) {
+        if (!add(message, time))
+            return false;
+        barrier = tail;
+        return true;
+    }
+
+    private boolean add(int message, long time) {
+        long t = tail;
+        if (t - Math.max(head, discard) == messages.length) {
+            dropped++;
+            return false;
+        }
+        int i = (int) t & mask;
+        messages[i] = message;
+        times[i] = time;
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Adds a continuous controller message (control change, pitch bend,
+     * channel or poly pressure) to the queue, or, if the last message for
+     * the same controller and channel has not been consumed yet and no
+     * other kind of message has been queued since, replaces its value
+     * (producer thread only). Other messages are just offered.
+     *
+     * @param message the packed message
+     * @param time the System.nanoTime() at which it was received
+     * @return false if the queue was full and the message was dropped
+     */
+    public boolean coalesce(int message, long time) {
+        int key = key(message);
+        if (key < 0)
+            return offer(message, time);
+        long i = lastIndex[key];
+        if (i >= barrier && tail - i <= messages.length
+                && MESSAGES.compareAndSet(messages, (int) i & mask, lastMessage[key], message)) {
+            lastMessage[key] = message;
+            coalesced++;
+            return true;
+        }
+        long t = tail;
+        if (!add(message, time))
+            return false;
+        lastIndex[key] = t;
+        lastMessage[key] = message;
+        return true;
+    }
+
+    // coalescing key of a message, or -1 if it is not a continuous controller
+    private static int key(int message) {
+        int channel = channel(message);
+        switch (command(message)) {
+            case ShortMessage.CONTROL_CHANGE:   return channel * 128 + data1(message);
+            case ShortMessage.PITCH_BEND:       return PITCH_BEND_KEYS + channel;
+            case ShortMessage.CHANNEL_PRESSURE: return CHANNEL_PRESSURE_KEYS + channel;
+            case ShortMessage.POLY_PRESSURE:    return POLY_PRESSURE_KEYS + channel * 128 + data1(message);
+            default:                            return -1;
+        }
+    }
+
+    // number of messages merged into one already queued
+    public long coalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Discards every message queued so far (producer thread only). The
+     * consumer skips them the next time it looks at the queue; messages
+     * offered afterwards are kept.
+     */
+    public void clear() {
+        long t = tail;
+        barrier = t;
+        discard = t;
+    }
+
+    // index of the message at the front of the queue, past the discarded ones
+    private long front() {
+        long h = head;
+        long d = discard;
+        return h > d ? h : d;
+    }
+
+    // is the queue empty?
+    public boolean isEmpty() {
+        return front() == tail;
+    }
+
+    // number of messages in the queue
+    public int size() {
+        return (int) (tail - front());
+    }
+
+    // returns the message at the front of the queue, or -1 if the queue is empty
+    public int peek() {
+        long h = front();
+        if (h == tail)
+            return -1;
+        return (int) MESSAGES.getVolatile(messages, (int) h & mask);
+    }
+
+    // returns the time of the message at the front of the queue (the queue must not be empty)
+    public long peekTime() {
+        return times[(int) front() & mask];
+    }
+
+    // removes and returns the message at the front of the queue (consumer
+    // thread only), or returns -1 if the queue is empty
+    public int poll() {
+        long h = front();
+        if (h == tail)
+            return -1;
+        int message = (int) MESSAGES.getAndSet(messages, (int) h & mask, CONSUMED);
+        head = h + 1;
+        return message;
+    }
+
+    // number of messages dropped because the queue was full
+    public long dropped() {
+        return dropped;
+    }
+
+    // tests this class
+    public static void main(String[] args) throws Exception {
+        MidiQueue queue = new MidiQueue(4);
+        ShortMessage noteOn = new ShortMessage(ShortMessage.NOTE_ON, 2, 60, 100);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(pack(noteOn), System.nanoTime());
+        }
+        System.out.println(queue.size());    // 4
+        System.out.println(queue.dropped()); // 1
+        int message = queue.poll();
+        System.out.println(command(message) == ShortMessage.NOTE_ON);    // true
+        System.out.println(channel(message) + " " + data1(message) + " " + data2(message)); // 2 60 100
+        while (!queue.isEmpty()) {
+            queue.poll();
+        }
+        System.out.println(queue.poll());    // -1
+
+        // a flood of control changes for one controller becomes one message
+        ShortMessage noteOff = new ShortMessage(ShortMessage.NOTE_OFF, 2, 60, 0);
+        queue.offer(pack(noteOn), System.nanoTime());
+        for (int value = 0; value < 128; value++) {
+            ShortMessage cc = new ShortMessage(ShortMessage.CONTROL_CHANGE, 2, 1, value);
+            queue.coalesce(pack(cc), System.nanoTime());
+        }
+        queue.offer(pack(noteOff), System.nanoTime());
+        queue.coalesce(pack(new ShortMessage(ShortMessage.CONTROL_CHANGE, 2, 1, 0)), System.nanoTime());
+        System.out.println(queue.size() + " " + queue.coalesced()); // 4 127
+        queue.poll();
+        System.out.println(data2(queue.poll()));                     // 127
+        queue.poll();
+        System.out.println(data2(queue.poll()));                     // 0
+
+        // messages queued before clear() are skipped
+        queue.offer(pack(noteOn), System.nanoTime());
+        queue.offer(pack(noteOn), System.nanoTime());
+        queue.clear();
+        queue.offer(pack(noteOff), System.nanoTime());
+        System.out.println(queue.size() + " " + (command(queue.poll()) == ShortMessage.NOTE_OFF)); // 1 true
+    }
+}
@@ -17,9 +17,9 @@ import javax.sound.midi.*;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.HashMap;
 /**
  *  The {@code MidiSource} class is used to create objects that produce MIDI
@@ -39,10 +39,16 @@ public final class MidiSource {
     private static final int MIDI_FILE = 1;
     private int sourceType;
 
-    // queue for midi messages- produced by MIDI transmitter (keyboard controller or sequencer)
-    private LinkedBlockingDeque<MidiMessage> midiMessageQueue;
+    // queue for short midi messages- produced by MIDI transmitter (keyboard controller
+    // or sequencer); preallocated, so that neither side allocates per message
+    private static final int QUEUE_CAPACITY = 4096;
+    private final MidiQueue midiMessageQueue = new MidiQueue(QUEUE_CAPACITY);
     private MidiDevice    device;       // hardware keyboard controller
     private Sequencer     sequencer;    // Java MIDI sequencer
+    private String        filename;     // MIDI file, if source is a file
+    private MidiIndex     index;        // event/time index of the file, built on first seek
+    private volatile IdleGate idleGate; // woken up when a message is queued, if set
+    private volatile MidiFilter filter = new MidiFilter(); // drops and coalesces messages as they arrive
 
     private boolean verbose = false;    // indicates if MidiSource should print information
                                         // about MidiMessages to stdout as messages are
@@ -128,7 +134,6 @@ public final class MidiSource {
         private Synthesizer   synth     = null;  // default Java Synthesizer
         private MidiChannel[] channels  = null;  // defaul - Java Sythesizer channels
         public MidiKeyboardControllerReceiver(boolean verbose, boolean playSynth) {
-            midiMessageQueue = new LinkedBlockingDeque<MidiMessage>();
             this.verbose   = verbose;
             this.playSynth = playSynth;
 
@@ -155,8 +160,15 @@ public final class MidiSource {
         @Override
         // Invoked each time Receiver gets a MidiMessage
         public void send(MidiMessage message, long timeStamp) {
-            // add the message to the queue
-            midiMessageQueue.add(message);
+            // add the message to the queue, unless the filter drops it;
+            // other messages are ignored
+            if (message instanceof ShortMessage
+                    && filter.offer(midiMessageQueue, MidiQueue.pack((ShortMessage) message), System.nanoTime())) {
+                // wake up a consumer parked while idle
+                IdleGate gate = idleGate;
+                if (gate != null)
+                    gate.wake();
+            }
             
             // print message?
             if (verbose)
@@ -177,9 +189,8 @@ public final class MidiSource {
                             
         // close the Receiver stream
         public void close() {
-            synth.close();
-            midiMessageQueue = null;
-
+            if (synth != null)
+                synth.close();
         }
     }
 
@@ -192,15 +203,21 @@ public final class MidiSource {
     private class MidiFileReceiver implements Receiver {
         private boolean     verbose    = false; // default - do not print message to stdout
         public MidiFileReceiver(boolean verbose) {
-            midiMessageQueue = new LinkedBlockingDeque<MidiMessage>();
             this.verbose   = verbose;
         }
 
         @Override
         // Invoked each time Receiver gets a MidiMessage
         public void send(MidiMessage message, long timeStamp) {
-            // add the message to the queue
-            midiMessageQueue.add(message);
+            // add the message to the queue, unless the filter drops it;
+            // other messages are ignored
+            if (message instanceof ShortMessage
+                    && filter.offer(midiMessageQueue, MidiQueue.pack((ShortMessage) message), System.nanoTime())) {
+                // wake up a consumer parked while idle
+                IdleGate gate = idleGate;
+                if (gate != null)
+                    gate.wake();
+            }
             
             // print message?
             if (verbose)
@@ -211,8 +228,6 @@ public final class MidiSource {
                             
         // close the Receiver stream
         public void close() {
-            midiMessageQueue = null;
-
         }
         
     }
@@ -227,11 +242,24 @@ public final class MidiSource {
      * @param verbose          log information about the device to stdout
      */
     private static MidiDevice openMidiController(boolean verbose) {
+        ArrayList<MidiDevice> devices = openMidiControllers(verbose, 1);
+        return devices.isEmpty() ? null : devices.get(0);
+    }
+
+    /**
+     * Search for connected Midi Keyboard controllers, and return up to max
+     * of them, opened.
+     *
+     * @param verbose          log information about the devices to stdout
+     * @param max              the largest number of controllers to open
+     */
+    private static ArrayList<MidiDevice> openMidiControllers(boolean verbose, int max) {
+        ArrayList<MidiDevice> devices = new ArrayList<MidiDevice>();
 
         // get installed Midi devices 
         MidiDevice.Info deviceInfo[] = MidiSystem.getMidiDeviceInfo();
         MidiDevice device = null;
-        for (int i = 0; i < deviceInfo.length; i++) {
+        for (int i = 0; i < deviceInfo.length && devices.size() < max; i++) {
             if (verbose) {
                 System.out.print("DEVICE " + i + ": ");
                 System.out.print(deviceInfo[i].getName()   + ", ");
@@ -272,15 +300,14 @@ public final class MidiSource {
                 }
                 if (verbose)
                     System.out.println("Valid MIDI controller connected.");
-                break;
+                devices.add(device);
             }
             else {
                 if (verbose)
                     System.out.println("Not a MIDI keyboard controller, trying next...");
-                device = null;
             }
         }
-        return device;
+        return devices;
     }
 
 
@@ -294,10 +321,15 @@ public final class MidiSource {
      *                          file failed
      */
     public MidiSource(boolean verbose, boolean connectToSynth) {
-        MidiDevice  keyboard = openMidiController(verbose);
+        this(openMidiController(verbose), verbose, connectToSynth);
+    }
+
+    // listens to an opened MIDI input device
+    private MidiSource(MidiDevice keyboard, boolean verbose, boolean connectToSynth) {
         if (keyboard == null)
             throw new RuntimeException("Unable to connect to a MIDI keyboard controller.");
 
+        device = keyboard;
         try {
             Transmitter transmitter = keyboard.getTransmitter();
             transmitter.setReceiver(new MidiKeyboardControllerReceiver(verbose, connectToSynth));
@@ -310,6 +342,24 @@ public final class MidiSource {
     }
 
 
+    /**
+     * Creates a MIDISource object for each connected MIDI input device, so
+     * that several controllers can be played together (see
+     * {@link MergedMidiSource}).
+     *
+     * @param verbose true turns on logging
+     * @return a source for each connected device, possibly none
+     */
+    public static MidiSource[] controllers(boolean verbose) {
+        ArrayList<MidiDevice> devices = openMidiControllers(verbose, Integer.MAX_VALUE);
+        MidiSource[] sources = new MidiSource[devices.size()];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = new MidiSource(devices.get(i), verbose, false);
+        }
+        return sources;
+    }
+
+
     /**
      *
      * @param connectToSynth use default Java sound synthesizer
@@ -333,6 +383,7 @@ public final class MidiSource {
         
         playSynth  = connectToSynth;
         sourceType = MIDI_FILE;
+        this.filename = filename;
         try {
             sequencer  = MidiSystem.getSequencer(connectToSynth);
         }
@@ -368,7 +419,11 @@ public final class MidiSource {
                         if (event.getType() == MIDI_END_OF_TRACK) {
                             // Sequencer is done playing
                             close();
-                            
+
+                            // wake up a consumer parked while idle, so that it sees the end
+                            IdleGate gate = idleGate;
+                            if (gate != null)
+                                gate.wake();
                         }
                     }
                 });
@@ -392,31 +447,125 @@ public final class MidiSource {
         else
             throw new RuntimeException("MidiSource: Illegal source type: " + sourceType);
     }
+
+    /**
+     * Starts the MIDISource from the given time in a MIDI file. The notes
+     * that are sounding at that time are queued as NOTE_ON messages, so
+     * that playback resumes immediately. Uses the file's {@link MidiIndex},
+     * which is loaded from (or saved to) filename.idx.
+     * <p>
+     * To scrub, call it again while the file is playing: the sequencer is
+     * stopped first, so that the calling thread is the only producer of the
+     * queue while the NOTE_ONs are queued, and the messages still queued
+     * from the old position are discarded, so they are not played after
+     * the seek.
+     *
+     * @param seconds the time to start from
+     * @throws RuntimeException if the source is not a MIDI file
+     */
+    public void start(double seconds) {
+        if (sourceType != MIDI_FILE)
+            throw new RuntimeException("MidiSource: can only seek in a MIDI file");
+        sequencer.stop();
+        midiMessageQueue.clear();
+        if (index == null)
+            index = MidiIndex.forFile(filename);
+
+        long sample = (long) (seconds * MidiIndex.SAMPLE_RATE);
+        byte[] sounding = new byte[MidiIndex.NOTES];
+        index.sounding(index.seek(sample), sounding);
+        sequencer.setTickPosition(index.sampleToTick(sample));
+        for (int i = 0; i < MidiIndex.NOTES; i++) {
+            if (sounding[i] == 0)
+                continue;
+            int message = ShortMessage.NOTE_ON | (i / 128) | ((i % 128) << 8) | (sounding[i] << 16);
+            midiMessageQueue.offer(message, System.nanoTime());
+        }
+
+        // wake up a consumer parked while idle, so that it plays the held notes
+        IdleGate gate = idleGate;
+        if (gate != null)
+            gate.wake();
+        sequencer.start();
+    }
+
+    /**
+     * Returns the event/time index of this MIDI file source.
+     *
+     * @return the index of the file
+     * @throws RuntimeException if the source is not a MIDI file
+     */
+    public MidiIndex index() {
+        if (sourceType != MIDI_FILE)
+            throw new RuntimeException("MidiSource: only a MIDI file has an index");
+        if (index == null)
+            index = MidiIndex.forFile(filename);
+        return index;
+    }
     
+    /**
+     * Wakes up the given gate every time a MIDI message is queued, so that
+     * a consumer can park in {@link IdleGate#await()} instead of polling
+     * isEmpty() while nothing is sounding.
+     *
+     * @param gate the gate to wake up, or null for none
+     */
+    public void setIdleGate(IdleGate gate) {
+        idleGate = gate;
+    }
+
+    /**
+     * Sets the filter that decides which MIDI messages are queued, and
+     * which controller messages are coalesced, as they arrive. By default,
+     * a {@code new MidiFilter()}. Call it before the source is started.
+     *
+     * @param filter the filter
+     */
+    public void setFilter(MidiFilter filter) {
+        if (filter == null)
+            throw new IllegalArgumentException("filter must not be null");
+        this.filter = filter;
+    }
+
+    /**
+     * Returns the filter that decides which MIDI messages are queued.
+     *
+     * @return the filter
+     */
+    public MidiFilter filter() {
+        return filter;
+    }
+
     /**
      * Return whether there are new MIDI messages available.
      *
      * @return true if and only if there are new messages available to consume
      */
     public boolean isEmpty() {
-        return midiMessageQueue.size() == 0;
+        return midiMessageQueue.isEmpty();
     }
 
     /**
-     * Return the next available short MIDI message (in FIFO order). All messages, 
-     * including the short MIDI message are  "consumed", i.e., it will no longer be 
-     * available after this call.  Returns null if queue is empty.
+     * Return the next available short MIDI message (in FIFO order), packed
+     * into an int as status | data1 << 8 | data2 << 16 (see {@link MidiQueue}).
+     * The message is "consumed", i.e., it will no longer be available after
+     * this call. Returns -1 if queue is empty. Unlike nextMessage(), this
+     * method never allocates, so it is the one to call from an audio loop.
      *
-     * @return The next available {@link MidiMessage}
+     * @return the next packed message, or -1 if there is none
      */
-    private ShortMessage getMidiMessage() {
-        while (!this.isEmpty()) {
-            MidiMessage message = midiMessageQueue.remove();
-            if (message instanceof ShortMessage) 
-                return (ShortMessage) message;
-            // ignore other messages
-        }
-        return null; // if empty
+    public int nextPackedMessage() {
+        return midiMessageQueue.poll();
+    }
+
+    /**
+     * Return the System.nanoTime() at which the next available message was
+     * received, without consuming it. The source must not be empty.
+     *
+     * @return the time the next message was received
+     */
+    public long nextTime() {
+        return midiMessageQueue.peekTime();
     }
 
     /**
@@ -425,12 +574,12 @@ public final class MidiSource {
      * @return code of key pressed
      */
     public int nextKeyPressed() {
-        ShortMessage message = getMidiMessage();
-        if (message == null)
+        int message = nextPackedMessage();
+        if (message == -1)
             return -1;
         else
-            if (message.getCommand() == ShortMessage.NOTE_ON)
-                return message.getData1();
+            if (MidiQueue.command(message) == ShortMessage.NOTE_ON)
+                return MidiQueue.data1(message);
             else
                 return -1;
     }
@@ -441,11 +590,15 @@ public final class MidiSource {
      * @return Short MIDI message, null otherwise
      */
     public ShortMessage nextMessage() {
-        ShortMessage message = getMidiMessage();
-        if (message == null)
+        int message = nextPackedMessage();
+        if (message == -1)
             return null;
-        else
-            return message;
+        try {
+            return new ShortMessage(MidiQueue.status(message),
+                                    MidiQueue.data1(message), MidiQueue.data2(message));
+        } catch (InvalidMidiDataException e) {
+            throw new RuntimeException(e.getMessage());
+        }
     }
 
     /**
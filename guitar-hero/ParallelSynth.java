@@ -0,0 +1,394 @@
+/* *****************************************************************************
+ *  Compilation:  javac ParallelSynth.java
+ *  Execution:    java ParallelSynth [-w workers] [-warm ms] [-line frames] [filename.mid]
+ *
+ *  A ParallelSynth plays the 16 channels of MIDI input with guitar strings,
+ *  one StringBank per channel, rendering block by block. The channels are
+ *  split among a fixed pool of worker threads (channel c is rendered by
+ *  worker c % workers); the output thread releases the workers at the start
+ *  of each block, waits for them on a spinning barrier that only parks
+ *  after a short spin (or at once when there are not enough cores to
+ *  spin), and mixes the channel blocks itself.
+ *
+ *  Each channel's render time is measured from the start of the block, and
+ *  a block in which a channel finished after the block's duration had
+ *  elapsed counts as a deadline miss for that channel.
+ *
+ *  The time to render and mix each block is fed to a LoadGovernor, and when
+ *  the governor changes level every channel sheds load accordingly (see
+ *  StringBank.shed()) from the next block on. Rendering that is not paced by
+ *  the output device (ahead of time, into a buffer) should turn this off
+ *  with setGoverned(false), since its blocks have no real-time deadline.
+ *
+ *  With 0 workers every channel is rendered on the output thread.
+ *
+ **************************************************************************** */
+
+import javax.sound.midi.ShortMessage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+public final class ParallelSynth {
+    // number of MIDI channels
+    public static final int CHANNELS = 16;
+
+    // sampling rate, same as GuitarString
+    public static final int SAMPLE_RATE = 44100;
+
+    // number of busy-wait iterations before a waiting thread parks, when
+    // there is a core for every worker and the output thread
+    private static final int SPIN_LIMIT = 20000;
+
+    private final int blockSize;                  // samples per block
+    private final long deadlineNanos;             // duration of one block
+    private final StringBank[] banks = new StringBank[CHANNELS];
+    private final double[][] channelBlocks;       // rendered block of each channel
+    private final boolean[] sounding = new boolean[CHANNELS]; // channel rendered this block
+
+    // deadline statistics, per channel
+    private final long[] finishNanos = new long[CHANNELS]; // this block, from its start
+    private final long[] worstNanos  = new long[CHANNELS];
+    private final long[] misses      = new long[CHANNELS];
+    private long blocks;                          // number of blocks rendered
+    private final LoadGovernor governor;
+    private boolean governed = true;              // feed render times to the governor
+
+    // worker pool and barrier
+    private final Worker[] workers;
+    private final Thread output;                  // thread that calls render()
+    private final int spinLimit;                  // SPIN_LIMIT, or 0 if cores are shared
+    private final AtomicInteger remaining = new AtomicInteger(); // workers still rendering
+    private volatile long generation;             // incremented to release the workers
+    private volatile long blockStart;             // System.nanoTime() at release
+    private volatile boolean outputParked;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a synthesizer that renders blocks of the given size with the
+     * given number of worker threads. The thread creating the synthesizer is
+     * the output thread, the only one allowed to call its other methods.
+     *
+     * @param blockSize the number of samples per block
+     * @param workerCount the number of worker threads (0 to render on the output thread)
+     */
+    public ParallelSynth(int blockSize, int workerCount) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("block size must be positive");
+        if (workerCount < 0 || workerCount > CHANNELS)
+            throw new IllegalArgumentException("worker count must be between 0 and " + CHANNELS);
+        this.blockSize = blockSize;
+        this.deadlineNanos = blockSize * 1000000000L / SAMPLE_RATE;
+        this.channelBlocks = new double[CHANNELS][blockSize];
+        this.governor = new LoadGovernor(deadlineNanos);
+        for (int c = 0; c < CHANNELS; c++) {
+            banks[c] = new StringBank();
+        }
+        output = Thread.currentThread();
+        spinLimit = Runtime.getRuntime().availableProcessors() > workerCount ? SPIN_LIMIT : 0;
+        workers = new Worker[workerCount];
+        for (int w = 0; w < workerCount; w++) {
+            workers[w] = new Worker(w);
+            workers[w].start();
+        }
+    }
+
+    // number of samples per block
+    public int blockSize() {
+        return blockSize;
+    }
+
+    // plucks a note on a channel
+    public void noteOn(int channel, int note) {
+        banks[channel].noteOn(note);
+    }
+
+    /**
+     * Applies a packed short MIDI message (status | data1 << 8 | data2 << 16):
+     * a NOTE_ON with a non-zero velocity plucks its note, everything else is
+     * ignored (plucked strings ring out on their own).
+     *
+     * @param message the packed message
+     */
+    public void message(int message) {
+        if ((message & 0xF0) == ShortMessage.NOTE_ON && ((message >> 16) & 0x7F) != 0)
+            banks[message & 0x0F].noteOn((message >> 8) & 0x7F);
+    }
+
+    // applies a short MIDI message, see message(int)
+    public void message(ShortMessage message) {
+        message(message.getStatus() | (message.getData1() << 8) | (message.getData2() << 16));
+    }
+
+    // number of strings sounding on all channels
+    public int activeCount() {
+        int count = 0;
+        for (int c = 0; c < CHANNELS; c++) {
+            count += banks[c].activeCount();
+        }
+        return count;
+    }
+
+    /**
+     * Renders the next block: every channel is rendered on its worker, then
+     * the channels are mixed into out on this (the output) thread.
+     *
+     * @param out the array to write blockSize() samples into
+     */
+    public void render(double[] out) {
+        if (workers.length == 0) {
+            blockStart = System.nanoTime();
+            for (int c = 0; c < CHANNELS; c++) {
+                renderChannel(c);
+            }
+        }
+        else {
+            // release the workers
+            remaining.set(workers.length);
+            blockStart = System.nanoTime();
+            generation++;
+            for (Worker worker : workers) {
+                if (worker.parked)
+                    LockSupport.unpark(worker);
+            }
+
+            // wait for them
+            int spins = 0;
+            while (remaining.get() != 0) {
+                if (++spins < spinLimit) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                outputParked = true;
+                if (remaining.get() != 0)
+                    LockSupport.park(this);
+                outputParked = false;
+            }
+        }
+
+        // mix
+        for (int t = 0; t < blockSize; t++) {
+            out[t] = 0.0;
+        }
+        for (int c = 0; c < CHANNELS; c++) {
+            if (!sounding[c])
+                continue;
+            double[] block = channelBlocks[c];
+            for (int t = 0; t < blockSize; t++) {
+                out[t] += block[t];
+            }
+        }
+
+        // load shedding
+        if (governed && governor.update(System.nanoTime() - blockStart)) {
+            for (int c = 0; c < CHANNELS; c++) {
+                banks[c].shed(governor.cullLevel(), governor.maxVoices(), governor.damped());
+            }
+        }
+
+        // deadline statistics
+        blocks++;
+        for (int c = 0; c < CHANNELS; c++) {
+            long nanos = finishNanos[c];
+            if (nanos > worstNanos[c])
+                worstNanos[c] = nanos;
+            if (nanos > deadlineNanos)
+                misses[c]++;
+        }
+    }
+
+    // renders one channel and records when it finished
+    private void renderChannel(int c) {
+        sounding[c] = banks[c].render(channelBlocks[c], blockSize);
+        finishNanos[c] = System.nanoTime() - blockStart;
+    }
+
+    // number of blocks in which a channel finished after the block's deadline
+    public long misses(int channel) {
+        return misses[channel];
+    }
+
+    // longest time a channel took to finish, from the start of its block, in nanoseconds
+    public long worstNanos(int channel) {
+        return worstNanos[channel];
+    }
+
+    /**
+     * Sets whether blocks are held to their real-time deadline by the load
+     * governor. When turned off, every channel plays at full quality.
+     * Call it from the thread that calls render().
+     *
+     * @param governed false to never shed load
+     */
+    public void setGoverned(boolean governed) {
+        this.governed = governed;
+        if (!governed) {
+            for (int c = 0; c < CHANNELS; c++) {
+                banks[c].shed(0.0, StringBank.NOTES, false);
+            }
+        }
+    }
+
+    // governor deciding how much load to shed
+    public LoadGovernor governor() {
+        return governor;
+    }
+
+    // prints the deadline statistics of every channel to stdout
+    public void report() {
+        System.out.printf("%d blocks of %d samples, deadline %.3f ms, %d workers%n",
+                          blocks, blockSize, deadlineNanos / 1e6, workers.length);
+        System.out.printf("  load %.2f, level %s after %d changes%n", governor.load(),
+                          LoadGovernor.name(governor.level()), governor.changes());
+        for (int c = 0; c < CHANNELS; c++) {
+            System.out.printf("  channel %2d: worst %.3f ms, %d misses%n",
+                              c, worstNanos[c] / 1e6, misses[c]);
+        }
+    }
+
+    // ids of the worker threads, for allocation and CPU accounting
+    public long[] workerIds() {
+        long[] ids = new long[workers.length];
+        for (int w = 0; w < workers.length; w++) {
+            ids[w] = workers[w].getId();
+        }
+        return ids;
+    }
+
+    // stops the worker threads
+    public void close() {
+        running = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    // renders the channels c with c % workers.length == id, once per generation
+    private final class Worker extends Thread {
+        private final int id;
+        private volatile boolean parked;
+
+        Worker(int id) {
+            super("ParallelSynth worker " + id);
+            this.id = id;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long seen = 0;
+            while (true) {
+                int spins = 0;
+                while (generation == seen) {
+                    if (!running)
+                        return;
+                    if (++spins < spinLimit) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    parked = true;
+                    if (generation == seen && running)
+                        LockSupport.park(this);
+                    parked = false;
+                }
+                seen = generation;
+
+                for (int c = id; c < CHANNELS; c += workers.length) {
+                    renderChannel(c);
+                }
+
+                if (remaining.decrementAndGet() == 0 && outputParked)
+                    LockSupport.unpark(output);
+            }
+        }
+    }
+
+    /**
+     * Plays a MIDI keyboard controller, or a MIDI file, in real time:
+     *     java ParallelSynth [-w workers] [-warm ms] [-line frames] [filename.mid]
+     * and prints the deadline statistics of every channel when done. With
+     * -line, it plays through a LineSink with a buffer of the given size
+     * instead of StdAudio.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        int workerCount = Math.min(CHANNELS, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        long warmUpMillis = 2000;
+        int lineFrames = 0;
+        String filename = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-w"))
+                workerCount = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-warm"))
+                warmUpMillis = Long.parseLong(args[++i]);
+            else if (args[i].equals("-line"))
+                lineFrames = Integer.parseInt(args[++i]);
+            else
+                filename = args[i];
+        }
+
+        // compile the render path on a spare synthesizer before the audio
+        // device is opened
+        final ParallelSynth spare = new ParallelSynth(256, workerCount);
+        final double[] spareBlock = new double[spare.blockSize()];
+        WarmUp warmUp = new WarmUp(warmUpMillis);
+        warmUp.run(new WarmUp.Workload() {
+            private int count;
+            public double render() {
+                if (count % 8 == 0)
+                    spare.noteOn(count % CHANNELS, 36 + count % 60);
+                count++;
+                spare.render(spareBlock);
+                return spareBlock[0];
+            }
+        });
+        spare.close();
+        System.out.println(warmUp);
+
+        AudioSink sink;
+        if (lineFrames > 0) {
+            LineSink line = new LineSink(lineFrames);
+            System.out.printf("output latency %.1f ms (%d frames)%n", line.latencyMillis(), line.bufferFrames());
+            sink = line;
+        }
+        else
+            sink = new StdAudioSink();
+
+        MidiSource source;
+        if (filename == null)
+            source = new MidiSource(false, false);
+        else
+            source = new MidiSource(filename, false, false);
+
+        ParallelSynth synth = new ParallelSynth(256, workerCount);
+        double[] block = new double[synth.blockSize()];
+        long changes = 0;
+        IdleGate gate = new IdleGate();
+        source.setIdleGate(gate);
+        source.start();
+        while (source.isActive() || !source.isEmpty() || synth.activeCount() > 0) {
+
+            // park instead of rendering silence while nothing is sounding
+            if (source.isEmpty() && synth.activeCount() == 0) {
+                gate.await();
+                continue;
+            }
+            while (!source.isEmpty()) {
+                synth.message(source.nextPackedMessage());
+            }
+            synth.render(block);
+            sink.write(block, block.length);
+            LoadGovernor governor = synth.governor();
+            if (governor.changes() != changes) {
+                changes = governor.changes();
+                System.out.printf("load %.2f: %s -> %s%n", governor.load(),
+                                  LoadGovernor.name(governor.previousLevel()),
+                                  LoadGovernor.name(governor.level()));
+            }
+        }
+        synth.close();
+        synth.report();
+        sink.close();
+        System.exit(0);
+    }
+}
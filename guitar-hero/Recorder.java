@@ -0,0 +1,296 @@
+/* *****************************************************************************
+ *  Compilation:  javac Recorder.java
+ *  Execution:    java Recorder filename.wav
+ *
+ *  A Recorder is an AudioSink that keeps the last N seconds of everything
+ *  written to it, as 16-bit samples in a preallocated circular buffer, and
+ *  passes each block on to another sink. Writing a block only converts and
+ *  copies it, so the audio thread never allocates or touches a file.
+ *
+ *  Background threads save the recording as a WAV file, either on demand
+ *  with dump() (the last N seconds) or continuously with stream() (every
+ *  sample from then on, flushed every FLUSH_MILLIS). Dumps and the stream
+ *  have a thread each, so a dump is never held up by a stream. Files are
+ *  written with an AsynchronousFileChannel from two direct buffers, so
+ *  that the next chunk is converted while the previous one is being
+ *  written.
+ *
+ *  The audio thread stores at most GUARD samples before it publishes them,
+ *  so the GUARD oldest samples of the buffer may be overwritten at any
+ *  time; the writers never read them. The buffer also holds SLACK samples
+ *  more than N seconds, so that a dump still finds all of its N seconds
+ *  when its thread gets to them a little later.
+ *
+ **************************************************************************** */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class Recorder implements AudioSink {
+    private static final int SAMPLE_RATE = 44100;
+    private static final double MAX_16_BIT = Short.MAX_VALUE;
+
+    // size of each file write, in samples, and interval between flushes when streaming
+    private static final int CHUNK = 32768;
+    private static final int FLUSH_MILLIS = 100;
+
+    // size of a WAV header
+    private static final int HEADER_SIZE = 44;
+
+    // largest number of samples stored before they are published
+    private static final int GUARD = 4096;
+
+    // samples kept beyond the recording length, for the writer to start late
+    private static final int SLACK = SAMPLE_RATE / 2;
+
+    private final AudioSink next;           // sink to pass blocks on to, or null
+    private final short[] samples;          // last samples.length samples
+    private final int length;               // number of samples in a dump
+    private volatile long written;          // number of samples written
+
+    private final ExecutorService dumper;   // background writer of dumps
+    private final ExecutorService streamer; // background writer of the stream
+    private final ByteBuffer[] dumpChunks = new ByteBuffer[2];
+    private final ByteBuffer[] streamChunks = new ByteBuffer[2];
+    private volatile boolean streaming;
+    private final AtomicLong lost = new AtomicLong(); // samples overwritten before they were saved
+
+    /**
+     * Creates a recorder of the last seconds of audio.
+     *
+     * @param seconds the length of the recording
+     * @param next the sink to pass every block on to, or null for none
+     */
+    public Recorder(double seconds, AudioSink next) {
+        if (seconds <= 0)
+            throw new IllegalArgumentException("seconds must be positive");
+        this.next = next;
+        this.length = (int) Math.ceil(seconds * SAMPLE_RATE);
+        this.samples = new short[length + SLACK + GUARD];
+        for (int i = 0; i < 2; i++) {
+            dumpChunks[i] = ByteBuffer.allocateDirect(CHUNK * 2).order(ByteOrder.LITTLE_ENDIAN);
+            streamChunks[i] = ByteBuffer.allocateDirect(CHUNK * 2).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        dumper = writer("Recorder dump writer");
+        streamer = writer("Recorder stream writer");
+    }
+
+    private static ExecutorService writer(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // records a block, publishing at most GUARD samples at a time, and passes it on
+    public void write(double[] block, int length) {
+        long w = written;
+        int n = samples.length;
+        int i = (int) (w % n);
+        for (int t = 0; t < length; t++) {
+            double x = block[t];
+            if (x < -1.0) x = -1.0;
+            if (x > +1.0) x = +1.0;
+            samples[i] = (short) (MAX_16_BIT * x);
+            if (++i == n)
+                i = 0;
+            if ((t + 1) % GUARD == 0)
+                written = w + t + 1;
+        }
+        written = w + length;
+        if (next != null)
+            next.write(block, length);
+    }
+
+    // stops streaming, waits for pending files, and closes the next sink
+    public void close() {
+        streaming = false;
+        dumper.shutdown();
+        streamer.shutdown();
+        try {
+            dumper.awaitTermination(1, TimeUnit.MINUTES);
+            streamer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (next != null)
+            next.close();
+    }
+
+    // number of samples that were overwritten before they could be saved
+    public long lost() {
+        return lost.get();
+    }
+
+    /**
+     * Saves the last seconds of audio (as many as have been recorded) to a
+     * WAV file, in the background.
+     *
+     * @param filename the name of the WAV file
+     * @return a future that completes when the file is written
+     */
+    public Future<?> dump(final String filename) {
+        final long end = written;
+        return dumper.submit(new Runnable() {
+            public void run() {
+                long start = Math.max(0, end - length);
+                try (AsynchronousFileChannel file = open(filename)) {
+                    long bytes = save(file, dumpChunks, start, end, HEADER_SIZE);
+                    writeHeader(file, bytes);
+                } catch (IOException | InterruptedException | ExecutionException e) {
+                    throw new RuntimeException("Error writing file: " + filename);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts saving every sample written from now on to a WAV file, in the
+     * background, until close() is called. Only one stream at a time.
+     *
+     * @param filename the name of the WAV file
+     * @return a future that completes when the file is closed
+     */
+    public Future<?> stream(final String filename) {
+        streaming = true;
+        final long begin = written;
+        return streamer.submit(new Runnable() {
+            public void run() {
+                try (AsynchronousFileChannel file = open(filename)) {
+                    long saved = begin;
+                    long bytes = 0;
+                    while (true) {
+                        boolean last = !streaming;
+                        long end = written;
+                        bytes += save(file, streamChunks, saved, end, HEADER_SIZE + bytes);
+                        saved = end;
+                        if (last)
+                            break;
+                        Thread.sleep(FLUSH_MILLIS);
+                    }
+                    writeHeader(file, bytes);
+                } catch (IOException | InterruptedException | ExecutionException e) {
+                    throw new RuntimeException("Error writing file: " + filename);
+                }
+            }
+        });
+    }
+
+    private static AsynchronousFileChannel open(String filename) throws IOException {
+        return AsynchronousFileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // writes samples [start, end) at position from the given pair of
+    // buffers, skipping those that the audio thread may have overwritten;
+    // returns the number of bytes written
+    private long save(AsynchronousFileChannel file, ByteBuffer[] chunks, long start, long end, long position)
+            throws InterruptedException, ExecutionException {
+        int n = samples.length;
+        long bytes = 0;
+        Future<Integer> pending = null;
+        int c = 0;
+        long s = start;
+        while (s < end) {
+            // skip the samples the audio thread may already have overwritten
+            long oldest = written - n + GUARD;
+            if (s < oldest) {
+                lost.addAndGet(Math.min(oldest, end) - s);
+                s = oldest;
+                if (s >= end)
+                    break;
+            }
+
+            ByteBuffer chunk = chunks[c];
+            chunk.clear();
+            long stop = Math.min(end, s + CHUNK);
+            for (long k = s; k < stop; k++) {
+                chunk.putShort(samples[(int) (k % n)]);
+            }
+
+            // samples overwritten while they were being copied are silenced
+            long lapped = Math.min(written - n + GUARD - s, stop - s);
+            for (int k = 0; k < lapped; k++) {
+                chunk.putShort(k * 2, (short) 0);
+            }
+            if (lapped > 0)
+                lost.addAndGet(lapped);
+            chunk.flip();
+
+            if (pending != null)
+                pending.get();
+            pending = file.write(chunk, position + bytes);
+            bytes += (stop - s) * 2;
+            s = stop;
+            c = 1 - c;
+        }
+        if (pending != null)
+            pending.get();
+        return bytes;
+    }
+
+    // writes the header of a 16-bit mono WAV file with the given number of data bytes
+    private static void writeHeader(AsynchronousFileChannel file, long bytes)
+            throws InterruptedException, ExecutionException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] { 'R', 'I', 'F', 'F' });
+        header.putInt((int) (36 + bytes));
+        header.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+        header.putInt(16);                  // size of the fmt chunk
+        header.putShort((short) 1);         // PCM
+        header.putShort((short) 1);         // mono
+        header.putInt(SAMPLE_RATE);
+        header.putInt(SAMPLE_RATE * 2);     // bytes per second
+        header.putShort((short) 2);         // bytes per frame
+        header.putShort((short) 16);        // bits per sample
+        header.put(new byte[] { 'd', 'a', 't', 'a' });
+        header.putInt((int) bytes);
+        header.flip();
+        file.write(header, 0).get();
+    }
+
+    /**
+     * Tests this class: records 3 seconds of a chord, keeping the last 2,
+     * and dumps them to a WAV file.
+     *
+     * @param args the name of the WAV file
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("java Recorder <filename.wav>");
+            return;
+        }
+        Recorder recorder = new Recorder(2.0, null);
+        StringBank bank = new StringBank();
+        bank.noteOn(60);
+        bank.noteOn(64);
+        bank.noteOn(67);
+        double[] block = new double[256];
+        long nanos = 0;
+        for (int i = 0; i < 3 * SAMPLE_RATE / block.length; i++) {
+            if (!bank.render(block, block.length))
+                java.util.Arrays.fill(block, 0.0);     // nothing sounding
+            long start = System.nanoTime();
+            recorder.write(block, block.length);
+            nanos += System.nanoTime() - start;
+        }
+        recorder.dump(args[0]).get();
+        recorder.close();
+        System.out.printf("recording cost %.3f%% of real time%n", 100.0 * nanos / 3e9);
+    }
+}
@@ -0,0 +1,202 @@
+/* *****************************************************************************
+ *  Compilation:  javac RenderAhead.java
+ *  Execution:    java RenderAhead filename.mid [look-ahead seconds] [start seconds]
+ *
+ *  Plays a MIDI file by rendering ahead of the audio device. Since every
+ *  event of a file is known in advance (from its MidiIndex), a background
+ *  thread synthesizes the song with a ParallelSynth into a preallocated
+ *  circular buffer holding several seconds of audio, at full speed, and
+ *  the output thread only copies finished samples from it to its sink. Any
+ *  scheduling hiccup of the renderer shorter than the look-ahead window is
+ *  absorbed by the samples already in the buffer.
+ *
+ *  Events are applied at the start of the block they fall in, as in a
+ *  live ParallelSynth.
+ *
+ **************************************************************************** */
+
+import java.util.concurrent.locks.LockSupport;
+
+public final class RenderAhead {
+    // samples per rendered block (1.45 ms, the timing resolution of events)
+    private static final int BLOCK_SIZE = 64;
+
+    private final MidiIndex index;
+    private final long startSample;     // song time of the first rendered sample
+    private final int workerCount;      // workers of the renderer's ParallelSynth
+
+    // circular buffer of rendered samples
+    private final double[] frames;
+    private final int mask;             // frames.length - 1
+    private volatile long written;      // samples written (renderer)
+    private volatile long read;         // samples read (output)
+    private volatile boolean done;      // renderer has written the last sample
+    private volatile boolean rendererParked;
+    private volatile boolean running = true;
+    private long underruns;             // reads that found the buffer short (output)
+
+    private final Thread renderer;
+
+    /**
+     * Creates a player of a MIDI file that renders up to lookAhead seconds
+     * ahead of the output, and starts rendering.
+     *
+     * @param index the index of the MIDI file
+     * @param lookAhead the size of the look-ahead window, in seconds
+     * @param startSeconds the song time to start from
+     * @param workerCount the number of ParallelSynth workers
+     */
+    public RenderAhead(MidiIndex index, double lookAhead, double startSeconds, int workerCount) {
+        if (lookAhead <= 0)
+            throw new IllegalArgumentException("look-ahead must be positive");
+        this.index = index;
+        this.startSample = (long) (startSeconds * MidiIndex.SAMPLE_RATE);
+        this.workerCount = workerCount;
+        int capacity = Integer.highestOneBit((int) (lookAhead * MidiIndex.SAMPLE_RATE) - 1) << 1;
+        frames = new double[Math.max(capacity, 2 * BLOCK_SIZE)];
+        mask = frames.length - 1;
+
+        renderer = new Thread(new Runnable() {
+            public void run() {
+                render();
+            }
+        }, "RenderAhead renderer");
+        renderer.setDaemon(true);
+        renderer.setPriority(Thread.MAX_PRIORITY);
+        renderer.start();
+    }
+
+    // body of the renderer thread
+    private void render() {
+        // the renderer is the output thread of its synthesizer
+        ParallelSynth synth = new ParallelSynth(BLOCK_SIZE, workerCount);
+        synth.setGoverned(false);   // the look-ahead buffer absorbs slow blocks
+        double[] block = new double[BLOCK_SIZE];
+
+        // start with the notes sounding at the start time
+        int event = index.seek(startSample);
+        byte[] sounding = new byte[MidiIndex.NOTES];
+        index.sounding(event, sounding);
+        for (int i = 0; i < MidiIndex.NOTES; i++) {
+            if (sounding[i] != 0)
+                synth.noteOn(i / StringBank.NOTES, i % StringBank.NOTES);
+        }
+
+        long time = startSample;
+        while (running && (event < index.size() || time < index.length() || synth.activeCount() > 0)) {
+            // wait for room in the buffer, then render in a burst
+            while (written + BLOCK_SIZE - read > frames.length) {
+                rendererParked = true;
+                if (running && written + BLOCK_SIZE - read > frames.length)
+                    LockSupport.park(this);
+                rendererParked = false;
+                if (!running)
+                    break;
+            }
+
+            long end = time + BLOCK_SIZE;
+            while (event < index.size() && index.sample(event) < end) {
+                synth.message(index.message(event++));
+            }
+            synth.render(block);
+
+            long w = written;
+            for (int t = 0; t < BLOCK_SIZE; t++) {
+                frames[(int) (w + t) & mask] = block[t];
+            }
+            written = w + BLOCK_SIZE;
+            time = end;
+        }
+        synth.close();
+        done = true;
+    }
+
+    /**
+     * Copies the next samples to out. If the renderer has fallen behind, the
+     * missing samples are silent and the underrun is counted.
+     *
+     * @param out the array to copy into
+     * @param length the number of samples to copy
+     * @return the number of samples copied (less than length only at the end of the song)
+     */
+    public int read(double[] out, int length) {
+        long r = read;
+        long available = written - r;
+        int n = (int) Math.min(available, length);
+        for (int t = 0; t < n; t++) {
+            out[t] = frames[(int) (r + t) & mask];
+        }
+        read = r + n;
+
+        if (n < length && !done) {
+            underruns++;
+            for (int t = n; t < length; t++) {
+                out[t] = 0.0;
+            }
+            n = length;
+        }
+
+        // let the renderer burst once half of the window is free
+        if (rendererParked && written - read <= frames.length / 2)
+            LockSupport.unpark(renderer);
+        return n;
+    }
+
+    // waits until half of the look-ahead window has been rendered (or the
+    // whole song, if it is shorter), so that playback starts with a margin
+    public void prime() {
+        while (!done && written < frames.length / 2) {
+            LockSupport.parkNanos(1000000);
+        }
+    }
+
+    // has every sample of the song been read?
+    public boolean isDone() {
+        return done && read == written;
+    }
+
+    // number of samples rendered ahead of the output
+    public int buffered() {
+        return (int) (written - read);
+    }
+
+    // number of reads that found fewer samples than requested before the end of the song
+    public long underruns() {
+        return underruns;
+    }
+
+    // stops the renderer
+    public void close() {
+        running = false;
+        LockSupport.unpark(renderer);
+    }
+
+    /**
+     * Plays a MIDI file with StdAudio, rendering ahead:
+     *     java RenderAhead filename.mid [look-ahead seconds] [start seconds]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("java RenderAhead <midifile.mid> [look-ahead seconds] [start seconds]");
+            return;
+        }
+        double lookAhead = args.length > 1 ? Double.parseDouble(args[1]) : 4.0;
+        double start = args.length > 2 ? Double.parseDouble(args[2]) : 0.0;
+        int workerCount = Math.min(ParallelSynth.CHANNELS,
+                                   Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+        RenderAhead player = new RenderAhead(MidiIndex.forFile(args[0]), lookAhead, start, workerCount);
+        AudioSink sink = new StdAudioSink();
+        double[] block = new double[512];
+        player.prime();
+        while (!player.isDone()) {
+            int n = player.read(block, block.length);
+            sink.write(block, n);
+        }
+        sink.close();
+        System.out.println(player.underruns() + " underruns");
+        System.exit(0);
+    }
+}
@@ -99,11 +99,11 @@ public class RingBuffer {
 
     // For testing
     public String toString() {
-        String print = "";
+        StringBuilder print = new StringBuilder();
         for (int i = 0; i < capacity(); i++) {
-            print = print + samples[i] + ", ";
+            print.append(samples[i]).append(", ");
         }
-        return print;
+        return print.toString();
     }
 
     // tests and calls every instance method in this class
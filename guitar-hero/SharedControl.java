@@ -0,0 +1,305 @@
+/* *****************************************************************************
+ *  Compilation:  javac SharedControl.java
+ *  Execution:    java SharedControl engine filename.ctl
+ *                java SharedControl pluck filename.ctl note [velocity] [channel]
+ *
+ *  A SharedControl is a ring buffer of note events in a memory-mapped file,
+ *  through which other local processes (a game front-end, for example)
+ *  pluck strings without sockets, MIDI loopback, or any system call once
+ *  the file is mapped. Any number of processes may post events; one engine
+ *  drains them once per block.
+ *
+ *  Layout of the file (longs in native byte order, each counter on its own
+ *  cache line):
+ *
+ *      0    magic, capacity (ints)
+ *      64   claim: number of slots claimed by writers (CAS)
+ *      128  read: number of slots consumed by the engine
+ *      192  clock: sample time of the engine's next block
+ *      256  slots of 32 bytes: sequence, message, target sample time
+ *
+ *  A writer claims a slot by incrementing claim with a CAS, fills it in,
+ *  and publishes it by storing (slot index + 1) into its sequence with
+ *  release semantics. The engine takes every published slot at once,
+ *  freeing it for writers, and keeps the events that are not due yet in a
+ *  preallocated heap ordered by target sample time (0 for as soon as
+ *  possible), so an event scheduled far ahead never holds back the ones
+ *  posted after it.
+ *
+ **************************************************************************** */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public final class SharedControl {
+    private static final int MAGIC = 0x47484354; // "GHCT"
+
+    // offsets in the file
+    private static final int CAPACITY = 4;
+    private static final int CLAIM = 64;
+    private static final int READ = 128;
+    private static final int CLOCK = 192;
+    private static final int SLOTS = 256;
+
+    // layout of a slot
+    private static final int SLOT_SIZE = 32;
+    private static final int SEQUENCE = 0;
+    private static final int MESSAGE = 8;
+    private static final int TIME = 16;
+
+    // atomic access to the longs of the mapped file
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;           // capacity - 1
+    private long read;                // engine's copy of the read counter
+
+    // events taken from the ring but not due yet, a min-heap ordered by
+    // target time, then by posting order (engine only)
+    private final long[] pendingTime;
+    private final long[] pendingOrder;
+    private final int[] pendingMessage;
+    private int pending;
+
+    /**
+     * Maps a control file, creating it with the given capacity if it does
+     * not exist yet (or is not a control file). The engine should open the
+     * file first; writers may then pass any capacity.
+     *
+     * @param filename the name of the control file
+     * @param capacity the number of slots, a power of two, if the file is created
+     * @throws RuntimeException if the file cannot be mapped
+     */
+    public SharedControl(String filename, int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two");
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            FileChannel channel = file.getChannel();
+            boolean valid = false;
+            if (file.length() >= SLOTS) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOTS);
+                header.order(ByteOrder.nativeOrder());
+                int existing = header.getInt(CAPACITY);
+                valid = header.getInt(0) == MAGIC && existing > 0 && Integer.bitCount(existing) == 1
+                        && file.length() == SLOTS + (long) existing * SLOT_SIZE;
+                if (valid)
+                    capacity = existing;
+            }
+            if (!valid)
+                file.setLength(SLOTS + (long) capacity * SLOT_SIZE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOTS + (long) capacity * SLOT_SIZE);
+            buffer.order(ByteOrder.nativeOrder());
+            if (!valid) {
+                for (int i = 0; i < buffer.capacity(); i += 8) {
+                    buffer.putLong(i, 0L);
+                }
+                buffer.putInt(CAPACITY, capacity);
+                buffer.putInt(0, MAGIC);
+                buffer.force();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to map control file: " + filename);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.read = (long) LONGS.getVolatile(buffer, READ);
+        pendingTime = new long[capacity];
+        pendingOrder = new long[capacity];
+        pendingMessage = new int[capacity];
+    }
+
+    // number of slots
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Posts a packed short MIDI message (see {@link MidiQueue}) to be played
+     * at a sample time of the engine (see clock()), or as soon as possible
+     * if time is 0. Safe to call from any number of threads and processes.
+     * Only channel messages (status 0x80 to 0xEF, data bytes 0 to 127) can
+     * be posted, so a posted message is never -1.
+     *
+     * @param message the packed message
+     * @param time the sample time to play it at, or 0
+     * @return false if the ring is full and the event was dropped
+     * @throws IllegalArgumentException if message is not a packed channel message
+     */
+    public boolean post(int message, long time) {
+        int status = MidiQueue.status(message);
+        if (status < 0x80 || status > 0xEF || (message & 0xFF808000) != 0)
+            throw new IllegalArgumentException("not a packed MIDI channel message: " + Integer.toHexString(message));
+        long claim;
+        do {
+            claim = (long) LONGS.getVolatile(buffer, CLAIM);
+            if (claim - (long) LONGS.getVolatile(buffer, READ) >= capacity)
+                return false;
+        } while (!LONGS.compareAndSet(buffer, CLAIM, claim, claim + 1));
+
+        int slot = SLOTS + (int) (claim & mask) * SLOT_SIZE;
+        buffer.putInt(slot + MESSAGE, message);
+        LONGS.set(buffer, slot + TIME, time);
+        LONGS.setRelease(buffer, slot + SEQUENCE, claim + 1);
+        return true;
+    }
+
+    // posts a NOTE_ON for a note, see post(int, long); throws an
+    // IllegalArgumentException if channel, note or velocity is out of range
+    public boolean pluck(int channel, int note, int velocity, long time) {
+        if (channel < 0 || channel > 15)
+            throw new IllegalArgumentException("channel must be between 0 and 15: " + channel);
+        if (note < 0 || note > 127 || velocity < 0 || velocity > 127)
+            throw new IllegalArgumentException("note and velocity must be between 0 and 127");
+        return post(0x90 | channel | (note << 8) | (velocity << 16), time);
+    }
+
+    /**
+     * Removes and returns the earliest event due before the given sample
+     * time (engine only), or returns -1 if there is none. Events due at the
+     * same time are returned in the order they were posted. Every published
+     * slot is taken from the ring first, as long as there is room to keep
+     * it until it is due.
+     *
+     * @param until the sample time of the end of the block being rendered
+     * @return the packed message, or -1
+     */
+    public int poll(long until) {
+        take();
+        if (pending == 0 || pendingTime[0] >= until)
+            return -1;
+        int message = pendingMessage[0];
+        pending--;
+        if (pending > 0) {
+            pendingTime[0] = pendingTime[pending];
+            pendingOrder[0] = pendingOrder[pending];
+            pendingMessage[0] = pendingMessage[pending];
+            siftDown(0);
+        }
+        return message;
+    }
+
+    // number of events taken from the ring that are not played yet
+    public int pending() {
+        return pending;
+    }
+
+    // moves the published slots into the heap of pending events
+    private void take() {
+        long taken = read;
+        while (pending < pendingTime.length) {
+            int slot = SLOTS + (int) (read & mask) * SLOT_SIZE;
+            if ((long) LONGS.getAcquire(buffer, slot + SEQUENCE) != read + 1)
+                break;
+            int i = pending++;
+            long time = (long) LONGS.get(buffer, slot + TIME);
+            int message = buffer.getInt(slot + MESSAGE);
+            long order = read++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (before(parent, time, order))
+                    break;
+                pendingTime[i] = pendingTime[parent];
+                pendingOrder[i] = pendingOrder[parent];
+                pendingMessage[i] = pendingMessage[parent];
+                i = parent;
+            }
+            pendingTime[i] = time;
+            pendingOrder[i] = order;
+            pendingMessage[i] = message;
+        }
+        if (read != taken)
+            LONGS.setRelease(buffer, READ, read);
+    }
+
+    // is pending event i before an event at (time, order)?
+    private boolean before(int i, long time, long order) {
+        return pendingTime[i] < time || (pendingTime[i] == time && pendingOrder[i] < order);
+    }
+
+    private void siftDown(int i) {
+        long time = pendingTime[i];
+        long order = pendingOrder[i];
+        int message = pendingMessage[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= pending)
+                break;
+            if (child + 1 < pending && before(child + 1, pendingTime[child], pendingOrder[child]))
+                child++;
+            if (!before(child, time, order))
+                break;
+            pendingTime[i] = pendingTime[child];
+            pendingOrder[i] = pendingOrder[child];
+            pendingMessage[i] = pendingMessage[child];
+            i = child;
+        }
+        pendingTime[i] = time;
+        pendingOrder[i] = order;
+        pendingMessage[i] = message;
+    }
+
+    /**
+     * Drains the events due before the end of a block into a synthesizer
+     * and publishes the sample time of the next block (engine only).
+     *
+     * @param synth the synthesizer
+     * @param blockEnd the sample time of the end of the block about to be rendered
+     */
+    public void drain(ParallelSynth synth, long blockEnd) {
+        int message;
+        while ((message = poll(blockEnd)) != -1) {
+            synth.message(message);
+        }
+        LONGS.setRelease(buffer, CLOCK, blockEnd);
+    }
+
+    // sample time of the engine's next block, for writers to schedule events
+    public long clock() {
+        return (long) LONGS.getAcquire(buffer, CLOCK);
+    }
+
+    /**
+     * Runs an engine that plays the events posted to a control file, or
+     * posts a NOTE_ON to one:
+     *     java SharedControl engine filename.ctl
+     *     java SharedControl pluck filename.ctl note [velocity] [channel]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        String usage = "java SharedControl engine <file.ctl> | pluck <file.ctl> <note> [velocity] [channel]";
+        if (args.length < 2) {
+            System.out.println(usage);
+            return;
+        }
+        SharedControl control = new SharedControl(args[1], 4096);
+        if (args[0].equals("pluck") && args.length >= 3) {
+            int note = Integer.parseInt(args[2]);
+            int velocity = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+            int channel = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+            if (!control.pluck(channel, note, velocity, 0))
+                System.out.println("control ring is full");
+        }
+        else if (args[0].equals("engine")) {
+            ParallelSynth synth = new ParallelSynth(128, 1);
+            AudioSink sink = new StdAudioSink();
+            double[] block = new double[synth.blockSize()];
+            long time = control.clock();
+            while (true) {
+                time += block.length;
+                control.drain(synth, time);
+                synth.render(block);
+                sink.write(block, block.length);
+            }
+        }
+        else
+            System.out.println(usage);
+    }
+}
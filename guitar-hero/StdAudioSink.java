@@ -0,0 +1,19 @@
+/* *****************************************************************************
+ *  Compilation:  javac StdAudioSink.java
+ *
+ *  An AudioSink that plays samples with StdAudio.
+ *
+ **************************************************************************** */
+
+public final class StdAudioSink implements AudioSink {
+
+    public void write(double[] samples, int length) {
+        for (int i = 0; i < length; i++) {
+            StdAudio.play(samples[i]);
+        }
+    }
+
+    public void close() {
+        StdAudio.close();
+    }
+}
@@ -0,0 +1,148 @@
+/* *****************************************************************************
+ *  Compilation:  javac StringBank.java
+ *  Execution:    java StringBank
+ *
+ *  A StringBank is a set of 128 guitar strings, one for each MIDI note
+ *  number, as used by one MIDI channel. All the strings are created up
+ *  front, so that playing a note never allocates, and only the strings that
+ *  are sounding are advanced, so a bank with nothing to play costs nothing
+ *  to render.
+ *
+ **************************************************************************** */
+
+public final class StringBank {
+    // number of MIDI notes
+    public static final int NOTES = 128;
+
+    private final GuitarString[] strings = new GuitarString[NOTES]; // by note number
+    private final int[] active = new int[NOTES];    // notes of the sounding strings
+    private final boolean[] isActive = new boolean[NOTES];
+    private int activeCount;                        // number of sounding strings
+
+    // load shedding, set by a LoadGovernor
+    private double cullLevel = 0.0;                 // strings quieter than this are dropped
+    private int maxVoices = NOTES;                  // most strings sounding at once
+    private boolean damped = false;                 // strings decay with DAMPED_DECAY
+
+    // creates a bank of silent strings
+    public StringBank() {
+        for (int note = 0; note < NOTES; note++) {
+            strings[note] = new GuitarString(frequency(note));
+        }
+    }
+
+    // decay factors of a normal and of a damped string
+    private static final double NORMAL_DECAY = 0.996;
+    private static final double DAMPED_DECAY = 0.99;
+
+    // frequency of a MIDI note number (69 is concert A)
+    public static double frequency(int note) {
+        return 440.0 * Math.pow(2, (note - 69) / 12.0);
+    }
+
+    /**
+     * Plucks the string of a MIDI note.
+     *
+     * @param note the MIDI note number, between 0 and 127
+     */
+    public void noteOn(int note) {
+        strings[note].setDecay(damped ? DAMPED_DECAY : NORMAL_DECAY);
+        strings[note].pluck();
+        if (!isActive[note]) {
+            isActive[note] = true;
+            active[activeCount++] = note;
+        }
+    }
+
+    // number of strings that are sounding
+    public int activeCount() {
+        return activeCount;
+    }
+
+    /**
+     * Sets how this bank sheds load: strings whose amplitude falls below
+     * cullLevel are dropped, no more than maxVoices strings sound at once
+     * (the quietest are dropped first), and when damped, the sounding
+     * strings and those plucked later die out several times faster than
+     * normal (the sounding strings go back to normal when it is cleared).
+     *
+     * @param cullLevel the amplitude below which strings are dropped (0 for none)
+     * @param maxVoices the most strings sounding at once
+     * @param damped whether strings are damped
+     */
+    public void shed(double cullLevel, int maxVoices, boolean damped) {
+        this.cullLevel = cullLevel;
+        this.maxVoices = maxVoices;
+        if (damped != this.damped) {
+            this.damped = damped;
+            double decay = damped ? DAMPED_DECAY : NORMAL_DECAY;
+            for (int i = 0; i < activeCount; i++) {
+                strings[active[i]].setDecay(decay);
+            }
+        }
+    }
+
+    /**
+     * Renders the next samples of this bank into a block, overwriting it,
+     * and advances every sounding string. Strings that have become dormant
+     * are no longer advanced until they are plucked again.
+     *
+     * @param block the block to render into
+     * @param length the number of samples to render
+     * @return false if nothing is sounding (the block is then left untouched)
+     */
+    public boolean render(double[] block, int length) {
+        if (activeCount == 0)
+            return false;
+        for (int t = 0; t < length; t++) {
+            block[t] = 0.0;
+        }
+        for (int i = 0; i < activeCount; i++) {
+            GuitarString string = strings[active[i]];
+            for (int t = 0; t < length; t++) {
+                block[t] += string.sample();
+                string.tic();
+            }
+        }
+
+        // drop the strings that have died out, or are too quiet to keep
+        int kept = 0;
+        for (int i = 0; i < activeCount; i++) {
+            int note = active[i];
+            GuitarString string = strings[note];
+            if (string.isDormant() || string.amplitude() < cullLevel)
+                isActive[note] = false;
+            else
+                active[kept++] = note;
+        }
+        activeCount = kept;
+
+        // drop the quietest strings above the polyphony limit
+        while (activeCount > maxVoices) {
+            int quietest = 0;
+            for (int i = 1; i < activeCount; i++) {
+                if (strings[active[i]].amplitude() < strings[active[quietest]].amplitude())
+                    quietest = i;
+            }
+            isActive[active[quietest]] = false;
+            active[quietest] = active[--activeCount];
+        }
+        return true;
+    }
+
+    // tests this class: plucks a chord and renders it until it dies out
+    public static void main(String[] args) {
+        StringBank bank = new StringBank();
+        bank.noteOn(60);
+        bank.noteOn(64);
+        bank.noteOn(67);
+        System.out.println(bank.activeCount()); // 3
+        double[] block = new double[512];
+        int blocks = 0;
+        while (bank.render(block, block.length)) {
+            blocks++;
+        }
+        System.out.println(blocks * block.length / 44100.0 + " s until silent");
+        System.out.println(bank.activeCount()); // 0
+    }
+}
@@ -0,0 +1,157 @@
+/* *****************************************************************************
+ *  Compilation:  javac WarmUp.java
+ *  Execution:    java WarmUp [budget milliseconds]
+ *
+ *  A WarmUp renders a synthetic workload through a program's render path,
+ *  into a null sink, before the audio device is opened, so that the first
+ *  notes played are not rendered by the interpreter. It keeps rendering
+ *  until the JIT compiler has been quiet for QUIET_MILLIS (no compilation
+ *  time added, as reported by the CompilationMXBean, after MIN_BLOCKS
+ *  blocks), or until its time budget runs out.
+ *
+ *  Afterwards it reports the time it took, and the time to render the
+ *  first (cold) block compared with a warm block.
+ *
+ **************************************************************************** */
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+
+public final class WarmUp {
+    // minimum number of blocks to render, enough for C2 compilation thresholds
+    private static final int MIN_BLOCKS = 2000;
+
+    // how long the compiler must stay quiet to consider the render path compiled
+    private static final int QUIET_MILLIS = 250;
+
+    // number of last blocks averaged for the warm block time
+    private static final int WARM_BLOCKS = 16;
+
+    // one block of the render path
+    public interface Workload {
+        // renders one block and returns any of its samples (to keep it from being optimized away)
+        double render();
+    }
+
+    // result of the last workload, read so that it is not optimized away
+    private static volatile double sink;
+
+    private final long budgetNanos;
+    private long blocks;            // blocks rendered
+    private long timeToWarmNanos;   // time spent warming up
+    private long coldBlockNanos;    // time to render the first block
+    private long warmBlockNanos;    // average time to render the last WARM_BLOCKS blocks
+    private boolean converged;      // compiler went quiet within the budget
+
+    /**
+     * Creates a warm-up with the given time budget.
+     *
+     * @param budgetMillis the longest time to spend warming up, in milliseconds
+     */
+    public WarmUp(long budgetMillis) {
+        if (budgetMillis < 0)
+            throw new IllegalArgumentException("budget must not be negative");
+        this.budgetNanos = budgetMillis * 1000000L;
+    }
+
+    /**
+     * Renders the workload until the compiler goes quiet or the budget runs out.
+     *
+     * @param workload one block of the render path, on objects that are not
+     *                 used for playing
+     * @return true if the compiler went quiet within the budget
+     */
+    public boolean run(Workload workload) {
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean monitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+        long[] recent = new long[WARM_BLOCKS];
+
+        long start = System.nanoTime();
+        long lastCompileMillis = monitored ? compiler.getTotalCompilationTime() : 0;
+        long lastCompileChange = start;
+        double result = 0.0;
+        long now = start;
+        while (now - start < budgetNanos) {
+            long blockStart = System.nanoTime();
+            result += workload.render();
+            now = System.nanoTime();
+            long nanos = now - blockStart;
+            if (blocks == 0)
+                coldBlockNanos = nanos;
+            recent[(int) (blocks % WARM_BLOCKS)] = nanos;
+            blocks++;
+
+            if (monitored) {
+                long compileMillis = compiler.getTotalCompilationTime();
+                if (compileMillis != lastCompileMillis) {
+                    lastCompileMillis = compileMillis;
+                    lastCompileChange = now;
+                }
+                if (blocks >= MIN_BLOCKS && now - lastCompileChange >= QUIET_MILLIS * 1000000L) {
+                    converged = true;
+                    break;
+                }
+            }
+        }
+        sink = result;
+        timeToWarmNanos = now - start;
+
+        long count = Math.min(blocks, WARM_BLOCKS);
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += recent[i];
+        }
+        warmBlockNanos = count == 0 ? 0 : total / count;
+        return converged;
+    }
+
+    // time spent warming up, in milliseconds
+    public double timeToWarmMillis() {
+        return timeToWarmNanos / 1e6;
+    }
+
+    // time to render the first (cold) block, in milliseconds
+    public double coldBlockMillis() {
+        return coldBlockNanos / 1e6;
+    }
+
+    // time to render a warm block, in milliseconds
+    public double warmBlockMillis() {
+        return warmBlockNanos / 1e6;
+    }
+
+    // number of blocks rendered
+    public long blocks() {
+        return blocks;
+    }
+
+    // did the compiler go quiet within the budget?
+    public boolean isConverged() {
+        return converged;
+    }
+
+    // summary of the warm-up
+    public String toString() {
+        return String.format("warm-up: %s after %.1f ms (%d blocks), first block %.3f ms, warm block %.3f ms",
+                             converged ? "compiled" : "budget spent", timeToWarmMillis(), blocks,
+                             coldBlockMillis(), warmBlockMillis());
+    }
+
+    // tests this class by warming up a StringBank
+    public static void main(String[] args) {
+        long budget = args.length > 0 ? Long.parseLong(args[0]) : 3000;
+        final StringBank bank = new StringBank();
+        final double[] block = new double[256];
+        WarmUp warmUp = new WarmUp(budget);
+        warmUp.run(new Workload() {
+            private int count;
+            public double render() {
+                if (count++ % 20 == 0)
+                    bank.noteOn(40 + count % 40);
+                bank.render(block, block.length);
+                return block[0];
+            }
+        });
+        System.out.println(warmUp);
+    }
+}